@@ -0,0 +1,78 @@
+package com.example.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes allocated per message on the server's hot path: parse a SEND_MESSAGE line, dispatch
+ * on its command and write the NEW_MESSAGE push. Meant to be run with {@code -prof gc} and
+ * read from gc.alloc.rate.norm. The sockets are replaced by a null stream, so only the
+ * protocol code is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandDispatchBenchmark {
+    private static final String SENDER = "Ada Lovelace";
+
+    private final OutputStream socket = OutputStream.nullOutputStream();
+    private byte[] line;
+    private PrintWriter writer;
+    private OutputBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        line = "SEND_MESSAGE|65f1c2a9e4b0a1d2c3e4f5a6|See you at the station at ten"
+                .getBytes(StandardCharsets.UTF_8);
+        writer = new PrintWriter(socket, true);
+        buffer = new OutputBuffer();
+    }
+
+    /**
+     * What the server did before: a String per line, a regex split, a switch on the command
+     * name, and a concatenated reply through an autoflushing PrintWriter.
+     */
+    @Benchmark
+    public void splitAndPrint() {
+        String message = new String(line, StandardCharsets.UTF_8);
+        String[] parts = message.split("\\|", 4);
+        switch (parts[0]) {
+            case "SEND_MESSAGE":
+                writer.println("NEW_MESSAGE|" + SENDER + "|" + parts[2]);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** The reworked path: tokenized from the bytes, a switch on the opcode, encoded into a reused buffer. */
+    @Benchmark
+    public void decodeAndEncode() throws IOException {
+        Frame frame = TextCodec.decode(line, 0, line.length);
+        switch (frame.getOpcode()) {
+            case SEND_MESSAGE:
+                TextCodec.encode(Frame.of(Opcode.NEW_MESSAGE, SENDER, frame.getString(1)), buffer);
+                break;
+            default:
+                break;
+        }
+        buffer.writeTo(socket);
+    }
+}
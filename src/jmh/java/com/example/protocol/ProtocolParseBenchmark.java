@@ -0,0 +1,66 @@
+package com.example.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing one received SEND_MESSAGE in each wire format: the original
+ * {@code String.split} of a decoded line, {@link TextCodec} over the raw line bytes, and
+ * {@link BinaryCodec}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolParseBenchmark {
+    private static final String CONVERSATION_ID = "65f1c2a9e4b0a1d2c3e4f5a6";
+
+    @Param({"32", "512"})
+    int textLength;
+
+    private byte[] line;
+    private ByteBuffer binary;
+    private BinaryCodec binaryCodec;
+
+    @Setup
+    public void setUp() {
+        Frame frame = Frame.of(Opcode.SEND_MESSAGE, CONVERSATION_ID, "x".repeat(textLength));
+        line = TextCodec.encode(frame).getBytes(StandardCharsets.UTF_8);
+        OutputBuffer out = new OutputBuffer();
+        BinaryCodec.encode(frame, out);
+        binary = out.take();
+        binaryCodec = new BinaryCodec(1 << 20);
+    }
+
+    /** What the server did before: a String per line, then a regex split. */
+    @Benchmark
+    public String[] split() {
+        return new String(line, StandardCharsets.UTF_8).split("\\|", 4);
+    }
+
+    @Benchmark
+    public Frame text() {
+        return TextCodec.decode(line, 0, line.length);
+    }
+
+    @Benchmark
+    public Frame binary() {
+        binary.rewind();
+        return binaryCodec.decode(binary);
+    }
+}
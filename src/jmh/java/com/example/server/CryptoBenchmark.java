@@ -0,0 +1,104 @@
+package com.example.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages encrypted and decrypted per second by {@link CryptoUtil}: the legacy ECB format as
+ * it was (a cipher looked up on every call), ECB with the cached cipher, and AES-GCM, one at a
+ * time and as a history page through {@link CryptoUtil#decryptAll}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+    private static final int PAGE_SIZE = 50;
+    /** CryptoUtil's key, for the legacy code below. */
+    private static final SecretKeySpec LEGACY_KEY =
+            new SecretKeySpec("1234567890123456".getBytes(StandardCharsets.UTF_8), "AES");
+
+    @Param({"64", "1024"})
+    int textLength;
+
+    private String plainText;
+    private String ecbText;
+    private String gcmText;
+    private List<String> ecbPage;
+    private List<String> gcmPage;
+
+    @Setup
+    public void setUp() throws Exception {
+        plainText = "x".repeat(textLength);
+        ecbText = legacyEncrypt();
+        gcmText = CryptoUtil.encrypt(plainText);
+        ecbPage = Collections.nCopies(PAGE_SIZE, ecbText);
+        gcmPage = new ArrayList<>(CryptoUtil.encryptAll(Collections.nCopies(PAGE_SIZE, plainText)));
+    }
+
+    /** The original CryptoUtil.encrypt. */
+    @Benchmark
+    public String legacyEncrypt() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, LEGACY_KEY);
+        byte[] encryptedBytes = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(encryptedBytes);
+    }
+
+    /** The original CryptoUtil.decrypt. */
+    @Benchmark
+    public String legacyDecrypt() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, LEGACY_KEY);
+        byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(ecbText));
+        return new String(decryptedBytes, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String ecbDecrypt() throws Exception {
+        return CryptoUtil.decrypt(ecbText);
+    }
+
+    @Benchmark
+    public String gcmEncrypt() throws Exception {
+        return CryptoUtil.encrypt(plainText);
+    }
+
+    @Benchmark
+    public String gcmDecrypt() throws Exception {
+        return CryptoUtil.decrypt(gcmText);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public List<String> ecbDecryptPage() {
+        return CryptoUtil.decryptAll(ecbPage);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public List<String> gcmDecryptPage() {
+        return CryptoUtil.decryptAll(gcmPage);
+    }
+}
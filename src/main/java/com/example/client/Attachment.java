@@ -0,0 +1,59 @@
+package com.example.client;
+
+/**
+ * One file in the Files tab. The ID is the attachment ID the server downloads by; for
+ * servers that only list names it is the file name, and seq, size and sender are unknown.
+ */
+public class Attachment {
+    private final String id;
+    private final long seq;
+    private final long size;
+    private final String sender;
+    private final String fileName;
+
+    public Attachment(String id, long seq, long size, String sender, String fileName) {
+        this.id = id;
+        this.seq = seq;
+        this.size = size;
+        this.sender = sender;
+        this.fileName = fileName;
+    }
+
+    public static Attachment named(String fileName) {
+        return new Attachment(fileName, 0, -1, null, fileName);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(fileName);
+        if (size >= 0) sb.append("  (").append(formatSize(size)).append(')');
+        if (sender != null) sb.append("  from ").append(sender);
+        return sb.toString();
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+}
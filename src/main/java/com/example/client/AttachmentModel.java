@@ -0,0 +1,100 @@
+package com.example.client;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The files of one conversation, keyed by attachment ID. An index from ID to position
+ * makes each update a hash lookup instead of a scan of the list, and the view sorts and
+ * filters through FilteredList and SortedList rather than rebuilding the list. Updates
+ * come in as FILE_ITEMs after {@link #getLastSeq()}, so reopening a conversation only
+ * fetches files shared since it was last shown.
+ */
+public class AttachmentModel {
+    public enum Order {
+        NEWEST("Newest first", Comparator.comparingLong(Attachment::getSeq).reversed()),
+        NAME("Name", Comparator.comparing(Attachment::getFileName, String.CASE_INSENSITIVE_ORDER)),
+        SIZE("Largest first", Comparator.comparingLong(Attachment::getSize).reversed());
+
+        private final String label;
+        private final Comparator<Attachment> comparator;
+
+        Order(String label, Comparator<Attachment> comparator) {
+            this.label = label;
+            this.comparator = comparator;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final ObservableList<Attachment> items = FXCollections.observableArrayList();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private final FilteredList<Attachment> filtered = new FilteredList<>(items);
+    private final SortedList<Attachment> view = new SortedList<>(filtered, Order.NEWEST.comparator);
+    private Order order = Order.NEWEST;
+    private long lastSeq;
+
+    /** The sorted, filtered files, for a ListView. */
+    public ObservableList<Attachment> getView() {
+        return view;
+    }
+
+    /** The newest sequence number seen, to ask the server only for files after it. */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    /** Adds new files and replaces ones already known by ID, with one list change for the batch. */
+    public void upsertAll(List<Attachment> batch) {
+        List<Attachment> added = new ArrayList<>();
+        for (Attachment attachment : batch) {
+            lastSeq = Math.max(lastSeq, attachment.getSeq());
+            Integer position = positions.get(attachment.getId());
+            if (position == null) {
+                positions.put(attachment.getId(), items.size() + added.size());
+                added.add(attachment);
+            } else if (position < items.size()) {
+                items.set(position, attachment);
+            } else {
+                added.set(position - items.size(), attachment);
+            }
+        }
+        if (!added.isEmpty()) items.addAll(added);
+    }
+
+    public void upsert(Attachment attachment) {
+        upsertAll(List.of(attachment));
+    }
+
+    /** Shows only files whose name or sender contains the text, ignoring case; blank shows all. */
+    public void setFilter(String text) {
+        String needle = text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+        if (needle.isEmpty()) {
+            filtered.setPredicate(null);
+            return;
+        }
+        filtered.setPredicate(a -> a.getFileName().toLowerCase(Locale.ROOT).contains(needle)
+                || (a.getSender() != null && a.getSender().toLowerCase(Locale.ROOT).contains(needle)));
+    }
+
+    public void setOrder(Order order) {
+        this.order = order;
+        view.setComparator(order.comparator);
+    }
+}
@@ -1,9 +1,12 @@
 package com.example.client;
 
+import com.example.protocol.Frame;
+import com.example.protocol.Opcode;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
@@ -11,10 +14,15 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import java.io.*;
-import java.net.Socket;
 import java.nio.file.Files;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ChatClientApp extends Application {
 
@@ -27,21 +35,68 @@ public class ChatClientApp extends Application {
 
     // UI Components
     private ListView<ConversationListItem> conversationListView;
-    private TextArea chatArea;
-    private TextField inputField;
-    private ListView<String> filesListView;
 
     // Networking
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private static final int MAX_AUTH_ATTEMPTS = 10;
+    private static final String SERVER_HOST = "206.189.115.143";
+    private static final int SERVER_PORT = 12345;
+    private volatile ServerConnection connection;
+
+    // Session resumption: the token from SESSION and the newest message ID seen so far
+    private static final int RECENT_MESSAGE_IDS = 1000;
+    private volatile String sessionToken;
+    private volatile String lastMessageId;
+    private final Set<String> recentMessageIds = new LinkedHashSet<>();
+
+    // Streaming file transfers in progress, keyed by transfer ID
+    private final Map<String, FileUpload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, FileDownload> downloads = new ConcurrentHashMap<>();
 
     // User Info
     private String username;
     private String displayName;
 
-    // Current conversation ID
-    private String currentConversationId;
+    // The open conversation and live views of the ones opened recently, least recently
+    // opened first. Frames are routed to views by conversation ID, so a view stays current
+    // while hidden and switching back to it only swaps the scene.
+    private static final int LIVE_CONVERSATIONS = 8;
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int MAX_CHAT_LINES = 2000;
+    private ConversationView currentView;
+    private final ConversationViewPool views = new ConversationViewPool(LIVE_CONVERSATIONS, this::storeConversation);
+    private final ConversationView.Actions conversationActions = new ConversationView.Actions() {
+        @Override
+        public void back(ConversationView view) {
+            storeConversation(view);
+            primaryStage.setScene(conversationsScene);
+            primaryStage.setTitle("Conversations - " + displayName);
+            loadConversationsList();
+        }
+
+        @Override
+        public void sendMessage(ConversationView view, String text) {
+            ChatClientApp.this.sendMessage(view, text);
+        }
+
+        @Override
+        public void sendFile(ConversationView view) {
+            ChatClientApp.this.sendFile(view);
+        }
+
+        @Override
+        public void download(ConversationView view, Attachment file) {
+            confirmAndDownload(view, file);
+        }
+    };
+
+    // Server frames reach the FX thread through here, in batches, once per pulse
+    private final UiDispatcher dispatcher = new UiDispatcher(this::handleServerBatch);
+
+    // Views that leave the pool are stored on disk, per user, so they open from local data
+    // later, after a restart too
+    private static final long MESSAGE_STORE_BYTES = 64L * 1024 * 1024;
+    private static final int STORED_LINES_ON_OPEN = 500;
+    private MessageStore messageStore;
 
     @Override
     public void start(Stage stage) {
@@ -90,66 +145,6 @@ public class ChatClientApp extends Application {
         return new Scene(root, 500, 400);
     }
 
-    private Scene buildConversationTabsScene() {
-        TabPane tabPane = new TabPane();
-        Tab chatTab = new Tab("Chat", buildChatUI());
-        chatTab.setClosable(false);
-        Tab filesTab = new Tab("Files", buildFilesUI());
-        filesTab.setClosable(false);
-        tabPane.getTabs().addAll(chatTab, filesTab);
-        return new Scene(tabPane, 600, 400);
-    }
-
-    /**
-     * Builds the Chat UI with a "Back to Conversations" button.
-     */
-    private VBox buildChatUI() {
-        VBox root = new VBox(10);
-        root.setPadding(new Insets(10));
-
-        // Back button to return to the conversations list
-        Button backButton = new Button("Back to Conversations");
-        backButton.setOnAction(e -> {
-            primaryStage.setScene(conversationsScene);
-            primaryStage.setTitle("Conversations - " + displayName);
-            loadConversationsList();
-        });
-
-        chatArea = new TextArea();
-        chatArea.setEditable(false);
-        chatArea.setWrapText(true);
-
-        inputField = new TextField();
-        inputField.setPromptText("Type your message...");
-
-        Button sendButton = new Button("Send");
-        sendButton.setOnAction(e -> sendMessage());
-        inputField.setOnAction(e -> sendMessage());
-
-        Button sendFileButton = new Button("Send File");
-        sendFileButton.setOnAction(e -> sendFile());
-
-        HBox inputBox = new HBox(10, inputField, sendButton, sendFileButton);
-        root.getChildren().addAll(backButton, chatArea, inputBox);
-        return root;
-    }
-
-    private Pane buildFilesUI() {
-        VBox root = new VBox(10);
-        root.setPadding(new Insets(10));
-        filesListView = new ListView<>();
-        filesListView.setOnMouseClicked(event -> {
-            if (event.getClickCount() == 2) {
-                String selectedFile = filesListView.getSelectionModel().getSelectedItem();
-                if (selectedFile != null) {
-                    confirmAndDownload(selectedFile);
-                }
-            }
-        });
-        Label instructions = new Label("Double-click a file to download.");
-        root.getChildren().addAll(instructions, filesListView);
-        return root;
-    }
 
     // -------------------- Event Handlers --------------------
     private void showNewChatDialog() {
@@ -160,7 +155,7 @@ public class ChatClientApp extends Application {
         Optional<String> result = dialog.showAndWait();
         result.ifPresent(otherEmail -> {
             if (!otherEmail.trim().isEmpty()) {
-                out.println("NEW_CHAT|" + otherEmail.trim());
+                send(Frame.of(Opcode.NEW_CHAT, otherEmail.trim()));
             }
         });
     }
@@ -171,18 +166,42 @@ public class ChatClientApp extends Application {
             showAlert("Please select a conversation first.");
             return;
         }
-        currentConversationId = selectedItem.getConversationId();
-        Scene convScene = buildConversationTabsScene();
-        primaryStage.setScene(convScene);
-        primaryStage.setTitle(selectedItem.getDisplayName());
-        out.println("GET_MESSAGES|" + currentConversationId);
-        // Send a command to fetch files as well.
-        out.println("GET_FILES|" + currentConversationId);
+        // A live view is already up to date: switching to it only swaps the scene.
+        currentView = views.open(selectedItem.getConversationId(),
+                id -> createView(id, selectedItem.getDisplayName()));
+        primaryStage.setScene(currentView.getScene());
+        primaryStage.setTitle(currentView.getTitle());
+    }
+
+    /**
+     * Builds the view for a conversation that is not live, showing the messages stored on
+     * disk if there are any and otherwise loading its newest page.
+     */
+    private ConversationView createView(String conversationId, String title) {
+        ConversationView view = new ConversationView(conversationId, title, MAX_CHAT_LINES, HISTORY_PAGE_SIZE,
+                this::send, conversationActions);
+        List<ChatLine> stored = messageStore != null
+                ? messageStore.load(conversationId, STORED_LINES_ON_OPEN)
+                : List.of();
+        if (stored.isEmpty()) {
+            view.loadLatestPage();
+        } else {
+            view.showStored(stored);
+        }
+        view.requestFiles();
+        return view;
+    }
+
+    /** Stores a view's new messages on disk, so once it leaves the pool reopening it needs only a SYNC. */
+    private void storeConversation(ConversationView view) {
+        if (messageStore != null && view.isUpToDate()) {
+            messageStore.save(view.getConversationId(), view.getStorableLines());
+        }
     }
 
     private void loadConversationsList() {
         conversationListView.getItems().clear();
-        out.println("LIST_USER_CONVERSATIONS");
+        send(Frame.of(Opcode.LIST_USER_CONVERSATIONS));
     }
 
     private void handleLogin() {
@@ -192,14 +211,7 @@ public class ChatClientApp extends Application {
             showAlert("No email or password provided.");
             return;
         }
-        if (connectAndAuthenticate("206.189.115.143", 12345, "LOGIN", "", email, password)) {
-            username = email;
-            primaryStage.setScene(conversationsScene);
-            primaryStage.setTitle("Conversations - " + displayName);
-            loadConversationsList();
-        } else {
-            showAlert("Authentication failed. Please try again.");
-        }
+        authenticateInBackground("LOGIN", "", email, password, "Authentication failed. Please try again.");
     }
 
     private void handleRegistration() {
@@ -208,61 +220,97 @@ public class ChatClientApp extends Application {
             showAlert("Registration canceled.");
             return;
         }
-        if (connectAndAuthenticate("206.189.115.143", 12345, "REGISTER", regData.getFullName(), regData.getEmail(), regData.getPassword())) {
-            username = regData.getEmail();
-            primaryStage.setScene(conversationsScene);
-            primaryStage.setTitle("Conversations - " + displayName);
-            loadConversationsList();
-        } else {
-            showAlert("Registration failed. Please try again.");
-        }
+        authenticateInBackground("REGISTER", regData.getFullName(), regData.getEmail(), regData.getPassword(),
+                "Registration failed. Please try again.");
+    }
+
+    /**
+     * Connects and authenticates on a background thread, since a busy server can keep the
+     * attempt waiting through several AUTH_BUSY retries, and applies the result on the FX
+     * thread. The login screen is disabled meanwhile.
+     */
+    private void authenticateInBackground(String authMode, String fullName, String email, String pass,
+                                          String failureMessage) {
+        Parent loginRoot = primaryStage.getScene().getRoot();
+        loginRoot.setDisable(true);
+        Thread authThread = new Thread(() -> {
+            String failure = connectAndAuthenticate(SERVER_HOST, SERVER_PORT, authMode, fullName, email, pass);
+            Platform.runLater(() -> {
+                loginRoot.setDisable(false);
+                if (failure == null) {
+                    username = email;
+                    messageStore = MessageStore.forUser(username, MESSAGE_STORE_BYTES);
+                    primaryStage.setScene(conversationsScene);
+                    primaryStage.setTitle("Conversations - " + displayName);
+                    loadConversationsList();
+                } else {
+                    showAlert(failure.isEmpty() ? failureMessage : failureMessage + "\n" + failure);
+                }
+            });
+        }, "chat-auth");
+        authThread.setDaemon(true);
+        authThread.start();
     }
 
     private void handleLogout() {
+        ServerConnection current = connection;
+        // Cleared first so the reader thread sees a logout, not a lost connection.
+        connection = null;
         try {
-            if (out != null) out.close();
-            if (in  != null) in.close();
-            if (socket != null && !socket.isClosed()) socket.close();
+            if (current != null) current.close();
         } catch (IOException ex) {
             // Silent close
         }
         username = null;
         displayName = null;
+        sessionToken = null;
+        lastMessageId = null;
+        recentMessageIds.clear();
         Platform.runLater(() -> {
+            views.clear();
+            messageStore = null;
+            currentView = null;
             primaryStage.setScene(buildLoginScene());
             primaryStage.setTitle("Chat Login");
         });
     }
 
-    private boolean connectAndAuthenticate(String host, int port, String authMode, String fullName, String userOrEmail, String pass) {
+    /** Returns null once authenticated, otherwise the server's reason, which may be empty. */
+    private String connectAndAuthenticate(String host, int port, String authMode, String fullName, String userOrEmail, String pass) {
         try {
-            socket = new Socket(host, port);
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            if ("REGISTER".equals(authMode)) {
-                out.println("REGISTER|" + fullName + "|" + userOrEmail + "|" + pass);
-                username = userOrEmail;
-            } else {
-                out.println("LOGIN|" + userOrEmail + "|" + pass);
-                username = userOrEmail;
-            }
-            String response = in.readLine();
-            if (response == null) {
-                return false;
+            connection = ServerConnection.open(host, port);
+            Frame authFrame = "REGISTER".equals(authMode)
+                    ? Frame.of(Opcode.REGISTER, fullName, userOrEmail, pass)
+                    : Frame.of(Opcode.LOGIN, userOrEmail, pass);
+            username = userOrEmail;
+            Frame response;
+            int attempts = 0;
+            while (true) {
+                connection.send(authFrame);
+                response = connection.read();
+                if (response == null) {
+                    return "";
+                }
+                // The server is shedding load: wait as long as it asks, then try again.
+                if (response.getOpcode() != Opcode.AUTH_BUSY || ++attempts >= MAX_AUTH_ATTEMPTS) break;
+                Thread.sleep(response.getLong(0));
             }
-            if (response.startsWith("AUTH_OK")) {
-                String[] parts = response.split("\\|", 2);
-                if (parts.length == 2) {
-                    displayName = parts[1];
+            if (response.getOpcode() == Opcode.AUTH_OK) {
+                if (response.size() == 1) {
+                    displayName = response.getString(0);
                 }
                 startReaderThread();
-                return true;
+                return null;
+            } else if (response.getOpcode() == Opcode.AUTH_BUSY) {
+                return "The server is busy.";
             } else {
-                return false;
+                return response.getOpcode() == Opcode.AUTH_FAIL && response.size() > 0 ? response.getString(0) : "";
             }
         } catch (IOException e) {
-            showError("Could not connect to server: " + e.getMessage());
-            return false;
+            return "Could not connect to server: " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
         }
     }
 
@@ -271,18 +319,31 @@ public class ChatClientApp extends Application {
      * If the connection is lost, it attempts to reconnect.
      */
     private void startReaderThread() {
+        ServerConnection current = connection;
         Thread readerThread = new Thread(() -> {
-            while (true) {
-                try {
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        final String serverLine = line;
-                        Platform.runLater(() -> handleServerLine(serverLine));
+            try {
+                Frame frame;
+                while ((frame = current.read()) != null) {
+                    if (frame.getOpcode() == Opcode.BATCH) {
+                        dispatcher.submitBatch(readBatch(current, frame));
+                        continue;
+                    }
+                    final Frame serverFrame = frame;
+                    String command = serverFrame.getOpcode().name();
+                    if (command.startsWith("UPLOAD_") || command.startsWith("DOWNLOAD_")) {
+                        // Transfer chunks are written to disk here rather than on the FX thread.
+                        handleTransferFrame(serverFrame);
+                        continue;
                     }
-                } catch (IOException e) {
-                    showError("Connection lost. Attempting to reconnect...");
-                    attemptReconnect();
+                    dispatcher.submit(serverFrame);
                 }
+            } catch (IOException e) {
+                // Handled below, the same as the server closing the connection.
+            }
+            // A successful reconnect starts a new reader; this one is done either way.
+            if (connection == current && username != null) {
+                Platform.runLater(() -> showError("Connection lost. Attempting to reconnect..."));
+                attemptReconnect();
             }
         });
         readerThread.setDaemon(true);
@@ -290,7 +351,8 @@ public class ChatClientApp extends Application {
     }
 
     /**
-     * Attempts to reconnect to the server if the connection is lost.
+     * Attempts to reconnect to the server if the connection is lost, resuming the session
+     * with its token rather than logging in again.
      */
     private void attemptReconnect() {
         int maxRetries = 5;
@@ -298,69 +360,299 @@ public class ChatClientApp extends Application {
         for (int i = 0; i < maxRetries; i++) {
             try {
                 Thread.sleep(retryDelay);
-                showError("Reconnecting... Attempt " + (i + 1) + "/" + maxRetries);
-                if (connectAndAuthenticate("206.189.115.143", 12345, "LOGIN", "", username, "")) {
-                    showAlert("Reconnected successfully!");
-                    return;
-                }
+                int attempt = i + 1;
+                Platform.runLater(() -> showError("Reconnecting... Attempt " + attempt + "/" + maxRetries));
+                Boolean resumed = resumeSession(SERVER_HOST, SERVER_PORT);
+                if (resumed == null) continue;
+                if (!resumed) break;
+                uploads.values().forEach(FileUpload::resume);
+                downloads.values().forEach(FileDownload::resume);
+                Platform.runLater(() -> showAlert("Reconnected successfully!"));
+                return;
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Platform.runLater(() -> {
+            showAlert("Could not restore the session. Please log in again.");
+            handleLogout();
+        });
+    }
+
+    /**
+     * Sends RESUME with the session token and the last message seen. Returns true once the
+     * session is back, false if the server rejected the token, or null if it could not be reached.
+     */
+    private Boolean resumeSession(String host, int port) {
+        String token = sessionToken;
+        if (token == null) return false;
+        try {
+            ServerConnection resumed = ServerConnection.open(host, port);
+            resumed.send(Frame.of(Opcode.RESUME, token, lastMessageId));
+            Frame response = resumed.read();
+            if (response == null || response.getOpcode() != Opcode.RESUME_OK) {
+                resumed.close();
+                return false;
+            }
+            displayName = response.getString(1);
+            connection = resumed;
+            if (response.getLong(0) == 0) {
+                // Too much was missed to replay; start from what the server has now.
+                lastMessageId = null;
+                Platform.runLater(this::reloadAfterResume);
+            }
+            startReaderThread();
+            return true;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void reloadAfterResume() {
+        if (primaryStage.getScene() == conversationsScene) loadConversationsList();
+        // Every live view may have missed messages, not only the one on screen.
+        views.views().forEach(ConversationView::catchUp);
+    }
+
+    /** Advances the resume position past a message the server has sent us. */
+    private void notePosition(String messageId) {
+        if (lastMessageId == null || messageId.compareTo(lastMessageId) > 0) {
+            lastMessageId = messageId;
+        }
+    }
+
+    /** Records a message as shown; returns false if it already was. */
+    private boolean markSeen(String messageId) {
+        notePosition(messageId);
+        if (!recentMessageIds.add(messageId)) return false;
+        if (recentMessageIds.size() > RECENT_MESSAGE_IDS) {
+            recentMessageIds.remove(recentMessageIds.iterator().next());
+        }
+        return true;
+    }
+
+
+    /** Reads the frames announced by a BATCH|count header. */
+    private List<Frame> readBatch(ServerConnection from, Frame header) throws IOException {
+        int count = (int) header.getLong(0);
+        List<Frame> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Frame item = from.read();
+            if (item == null) break;
+            batch.add(item);
+        }
+        return batch;
+    }
+
+    /**
+     * Applies a batched reply, or a run of frames with the same opcode, in one UI update, so
+     * a long history or a burst of messages costs one layout pass instead of one per line.
+     */
+    private void handleServerBatch(List<Frame> batch) {
+        if (batch.isEmpty()) return;
+        switch (batch.get(0).getOpcode()) {
+            case MY_CONVO: {
+                List<ConversationListItem> items = new ArrayList<>(batch.size());
+                for (Frame frame : batch) {
+                    if (frame.size() >= 2) items.add(new ConversationListItem(frame.getString(0), frame.getString(1)));
+                }
+                conversationListView.getItems().addAll(items);
+                break;
+            }
+            case MESSAGE: {
+                // Grouped by conversation, so each view takes its lines in one update.
+                Map<ConversationView, List<ChatLine>> lines = new LinkedHashMap<>();
+                for (Frame frame : batch) {
+                    ChatLine line = acceptMessage(frame);
+                    if (line != null) {
+                        lines.computeIfAbsent(views.get(frame.getString(0)), v -> new ArrayList<>()).add(line);
+                    }
+                }
+                lines.forEach(ConversationView::appendLines);
+                break;
+            }
+            case MESSAGE_HISTORY: {
+                if (currentView == null) break;
+                List<ChatLine> lines = new ArrayList<>(batch.size());
+                for (Frame frame : batch) {
+                    if (frame.size() >= 1) lines.add(ChatLine.local(frame.getString(0)));
+                }
+                currentView.appendLines(lines);
+                break;
+            }
+            case FILE_ITEM: {
+                Map<ConversationView, List<Attachment>> files = new LinkedHashMap<>();
+                for (Frame frame : batch) {
+                    Attachment file = acceptAttachment(frame);
+                    if (file != null) {
+                        files.computeIfAbsent(views.get(frame.getString(0)), v -> new ArrayList<>()).add(file);
+                    }
+                }
+                files.forEach((view, added) -> view.getAttachments().upsertAll(added));
+                break;
+            }
+            case FILE_LIST: {
+                if (currentView == null) break;
+                List<Attachment> files = new ArrayList<>(batch.size());
+                for (Frame frame : batch) {
+                    if (frame.size() == 1) files.add(Attachment.named(frame.getString(0)));
+                }
+                currentView.getAttachments().upsertAll(files);
+                break;
+            }
+            default:
+                // History pages are already collected and applied together on HISTORY_PAGE.
+                batch.forEach(this::handleServerFrame);
+                break;
+        }
+    }
+
+    private void handleTransferFrame(Frame frame) {
+        if (frame.size() < 1) return;
+        String transferId = frame.getString(0);
+        if (frame.getOpcode().name().startsWith("UPLOAD_")) {
+            FileUpload upload = uploads.get(transferId);
+            if (upload != null) upload.onReply(frame);
+        } else {
+            FileDownload download = downloads.get(transferId);
+            if (download != null && download.onReply(frame)) {
+                downloads.remove(transferId);
             }
         }
-        showError("Failed to reconnect after multiple attempts.");
     }
 
+    /** The live view for the conversation named in a frame's first field, or null. */
+    private ConversationView viewFor(Frame frame, int fields) {
+        return frame.size() >= fields ? views.get(frame.getString(0)) : null;
+    }
+
+    /** Records a MESSAGE push and returns its line if its conversation has a live view. */
+    private ChatLine acceptMessage(Frame frame) {
+        if (frame.size() != 4) return null;
+        notePosition(frame.getString(1));
+        ConversationView view = views.get(frame.getString(0));
+        if (view == null || !markSeen(frame.getString(1))) return null;
+        view.noteSeq(frame.getLong(2));
+        return new ChatLine(frame.getString(1), frame.getLong(2), frame.getString(3));
+    }
 
-    private void handleServerLine(String line) {
-        String[] parts = line.split("\\|", 3);
-        String command = parts[0];
-        switch (command) {
-            case "MY_CONVO":
-                if (parts.length >= 3) {
-                    String convId = parts[1];
-                    String dispName = parts[2];
+    private void handleServerFrame(Frame frame) {
+        switch (frame.getOpcode()) {
+            case MY_CONVO:
+                if (frame.size() >= 2) {
+                    String convId = frame.getString(0);
+                    String dispName = frame.getString(1);
                     ConversationListItem item = new ConversationListItem(convId, dispName);
                     conversationListView.getItems().add(item);
                 }
                 break;
-            case "MESSAGE_HISTORY":
-                if (parts.length >= 2 && chatArea != null) {
-                    chatArea.appendText(parts[1] + "\n");
+            case MESSAGE_HISTORY:
+                // GET_MESSAGES lines carry no conversation ID; they can only go to the open view.
+                if (frame.size() >= 1 && currentView != null) currentView.appendLine(frame.getString(0));
+                break;
+            case HISTORY_ITEM: {
+                // HISTORY_ITEM|conversationId|messageId|seq|text
+                ConversationView view = viewFor(frame, 4);
+                if (view != null) {
+                    markSeen(frame.getString(1));
+                    view.addHistoryLine(new ChatLine(frame.getString(1), frame.getLong(2), frame.getString(3)));
                 }
                 break;
-            case "NEW_MESSAGE":
-                if (parts.length == 3 && chatArea != null) {
-                    chatArea.appendText(parts[1] + ": " + parts[2] + "\n");
+            }
+            case SYNC_ITEM: {
+                // SYNC_ITEM|conversationId|seq|messageId|text
+                // Deduplicated by ID: a SYNC after RESYNC may overlap messages already shown.
+                ConversationView view = viewFor(frame, 4);
+                if (view != null) {
+                    long seq = frame.getLong(1);
+                    view.addSyncLine(seq, markSeen(frame.getString(2))
+                            ? new ChatLine(frame.getString(2), seq, frame.getString(3))
+                            : null);
                 }
                 break;
-            case "NEW_FILE":
-                if (parts.length == 3) {
-                    // Display the file notification.
-                    chatArea.appendText(parts[1] + " shared a file: " + parts[2] + "\n");
-                    if (!filesListView.getItems().contains(parts[2])) {
-                        filesListView.getItems().add(parts[2]);
+            }
+            case RESYNC: {
+                // RESYNC|conversationId|fromSeq — the server skipped our messages from fromSeq on.
+                ConversationView view = viewFor(frame, 2);
+                if (view != null) view.resync(frame.getLong(1));
+                break;
+            }
+            case SYNC_END: {
+                // SYNC_END|conversationId|count|more
+                ConversationView view = viewFor(frame, 3);
+                if (view != null) view.applySync(frame.getLong(2) == 1);
+                break;
+            }
+            case HISTORY_PAGE: {
+                // HISTORY_PAGE|conversationId|count|nextCursor
+                ConversationView view = viewFor(frame, 2);
+                if (view != null) view.applyHistoryPage(frame.size() == 3 ? frame.getString(2) : "");
+                break;
+            }
+            case MESSAGE: {
+                // MESSAGE|conversationId|messageId|seq|line — may repeat one already shown when resuming.
+                // Messages for conversations without a live view are picked up by SYNC when those are opened.
+                ChatLine line = acceptMessage(frame);
+                if (line != null) views.get(frame.getString(0)).appendLines(List.of(line));
+                break;
+            }
+            case MESSAGE_SAVED: {
+                // MESSAGE_SAVED|conversationId|messageId|seq — our own message, already shown.
+                // Marked seen only once it is in the transcript with its seq, so it is never both
+                // missing from the view and skipped by SYNC.
+                ConversationView view = viewFor(frame, 3);
+                if (frame.size() == 3) {
+                    if (view == null || view.confirmOwnMessage(frame.getString(1), frame.getLong(2))) {
+                        markSeen(frame.getString(1));
+                    } else {
+                        notePosition(frame.getString(1));
                     }
                 }
                 break;
-            case "FILE_LIST":
-                if (parts.length == 2) {
-                    String fname = parts[1];
-                    if (!filesListView.getItems().contains(fname)) {
-                        filesListView.getItems().add(fname);
-                    }
+            }
+            case SESSION:
+                // SESSION|token|position
+                if (frame.size() == 2) {
+                    sessionToken = frame.getString(0);
+                    if (lastMessageId == null) lastMessageId = frame.getString(1);
                 }
                 break;
-            case "FILE_DATA":
-                if (parts.length == 3) {
-                    String fname = parts[1];
-                    String data = parts[2];
-                    if ("NOT_FOUND".equals(data)) {
+            case NEW_MESSAGE:
+                // NEW_MESSAGE and NEW_FILE come from servers that do not name the conversation.
+                if (frame.size() == 2 && currentView != null) {
+                    currentView.appendLine(frame.getString(0) + ": " + frame.getString(1));
+                }
+                break;
+            case NEW_FILE:
+                if (frame.size() == 2 && currentView != null) {
+                    String fname = frame.getString(1);
+                    // Display the file notification.
+                    currentView.appendLine(frame.getString(0) + " shared a file: " + fname);
+                    currentView.getAttachments().upsert(Attachment.named(fname));
+                }
+                break;
+            case FILE_LIST:
+                if (frame.size() == 1 && currentView != null) {
+                    currentView.getAttachments().upsert(Attachment.named(frame.getString(0)));
+                }
+                break;
+            case FILE_ITEM: {
+                Attachment file = acceptAttachment(frame);
+                if (file != null) views.get(frame.getString(0)).getAttachments().upsert(file);
+                break;
+            }
+            case FILE_DATA:
+                if (frame.size() == 2) {
+                    String fname = frame.getString(0);
+                    String status = frame.isBytes(1) ? "" : frame.getString(1);
+                    if ("NOT_FOUND".equals(status)) {
                         showAlert("File not found on server: " + fname);
-                    } else if ("ERROR".equals(data)) {
+                    } else if ("ERROR".equals(status)) {
                         showAlert("Error retrieving file: " + fname);
                     } else {
                         try {
-                            byte[] fileBytes = Base64.getDecoder().decode(data);
+                            byte[] fileBytes = frame.getBytes(1);
                             FileChooser fileChooser = new FileChooser();
                             fileChooser.setTitle("Save " + fname);
                             fileChooser.setInitialFileName(fname);
@@ -375,7 +667,7 @@ public class ChatClientApp extends Application {
                     }
                 }
                 break;
-            case "CHAT_STARTED":
+            case CHAT_STARTED:
                 loadConversationsList();
                 break;
             default:
@@ -386,20 +678,13 @@ public class ChatClientApp extends Application {
     /**
      * Sends a text message. If the server is unreachable, retries up to 3 times.
      */
-    private void sendMessage() {
-        if (currentConversationId == null) {
-            showAlert("No conversation is opened.");
-            return;
-        }
-        String text = inputField.getText().trim();
-        if (text.isEmpty()) return;
-
+    private void sendMessage(ConversationView view, String text) {
         int retries = 3;
         while (retries > 0) {
             try {
-                out.println("SEND_MESSAGE|" + currentConversationId + "|" + text);
-                chatArea.appendText("You: " + text + "\n");
-                inputField.clear();
+                connection.send(Frame.of(Opcode.SEND_MESSAGE, view.getConversationId(), text));
+                view.appendOwnMessage(text);
+                view.clearInput();
                 return; // If successful, exit retry loop
             } catch (Exception e) {
                 showError("Failed to send message. Retrying... (" + retries + " left)");
@@ -411,37 +696,85 @@ public class ChatClientApp extends Application {
     }
 
 
-    private void sendFile() {
-        if (currentConversationId == null) {
-            showAlert("No conversation is opened.");
-            return;
-        }
+    /**
+     * Uploads a file in chunks on a background thread, so neither the whole file nor its
+     * base64 form is ever held in memory.
+     */
+    private void sendFile(ConversationView view) {
         FileChooser chooser = new FileChooser();
         chooser.setTitle("Select File to Send");
         File file = chooser.showOpenDialog(primaryStage);
         if (file == null) return;
         try {
-            byte[] fileBytes = Files.readAllBytes(file.toPath());
-            String base64Data = Base64.getEncoder().encodeToString(fileBytes);
             String filename = file.getName();
-            out.println("SEND_FILE|" + currentConversationId + "|" + filename + "|" + base64Data);
-            chatArea.appendText("You: Shared a file: " + filename + "\n");
+            long size = Files.size(file.toPath());
+            String[] uploadId = new String[1];
+            FileUpload upload = new FileUpload(view.getConversationId(), file.toPath(), size, this::send,
+                    error -> Platform.runLater(() -> {
+                        uploads.remove(uploadId[0]);
+                        if (error != null) {
+                            showAlert(error);
+                        } else if (!connection.isResumable()) {
+                            // Resumable sessions get the stored line, with its seq, as a MESSAGE.
+                            view.appendLine("You: Shared a file: " + filename);
+                        }
+                    }));
+            uploadId[0] = upload.getUploadId();
+            uploads.put(uploadId[0], upload);
+            Thread uploadThread = new Thread(upload, "file-upload");
+            uploadThread.setDaemon(true);
+            uploadThread.start();
         } catch (IOException ex) {
             showAlert("Error reading file: " + ex.getMessage());
         }
     }
 
-    private void confirmAndDownload(String filename) {
+    /**
+     * FILE_ITEM|conversationId|attachmentId|seq|size|sender|fileName, as an Attachment if its
+     * conversation has a live view; others catch up with GET_FILES when they are opened.
+     */
+    private Attachment acceptAttachment(Frame frame) {
+        if (viewFor(frame, 6) == null) return null;
+        try {
+            return new Attachment(frame.getString(1), frame.getLong(2), frame.getLong(3),
+                    frame.getString(4), frame.getString(5));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void confirmAndDownload(ConversationView view, Attachment file) {
+        String filename = file.getFileName();
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
         alert.setTitle("Download File");
         alert.setHeaderText("Download File: " + filename);
         alert.setContentText("Would you like to download this file?");
         Optional<ButtonType> result = alert.showAndWait();
         if (result.isPresent() && result.get() == ButtonType.OK) {
-            out.println("GET_FILE|" + currentConversationId + "|" + filename);
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Save " + filename);
+            fileChooser.setInitialFileName(filename);
+            File saveLocation = fileChooser.showSaveDialog(primaryStage);
+            if (saveLocation == null) return;
+            FileDownload download = new FileDownload(view.getConversationId(), file.getId(), filename,
+                    saveLocation.toPath(), this::send,
+                    error -> Platform.runLater(() -> showAlert(error != null ? error
+                            : "File saved to: " + saveLocation.getAbsolutePath())));
+            downloads.put(download.getDownloadId(), download);
+            try {
+                download.start();
+            } catch (IOException e) {
+                downloads.remove(download.getDownloadId());
+                showAlert("Error saving file: " + e.getMessage());
+            }
         }
     }
 
+    private void send(Frame frame) {
+        ServerConnection current = connection;
+        if (current != null) current.send(frame);
+    }
+
     // -------------------- Utility Methods --------------------
     private String askForCredential(String label, String defaultVal) {
         TextInputDialog dialog = new TextInputDialog(defaultVal);
@@ -533,8 +866,8 @@ public class ChatClientApp extends Application {
     }
 
     private void showError(String message) {
-        if (chatArea != null) {
-            chatArea.appendText("[Error] " + message + "\n");
+        if (currentView != null) {
+            currentView.appendLine("[Error] " + message);
         } else {
             System.err.println("ERROR: " + message);
         }
@@ -543,9 +876,10 @@ public class ChatClientApp extends Application {
     @Override
     public void stop() throws Exception {
         super.stop();
-        if (out != null) out.close();
-        if (in != null) in.close();
-        if (socket != null && !socket.isClosed()) socket.close();
+        String pulses = dispatcher.summary();
+        if (pulses != null) System.out.println(pulses);
+        views.clear();
+        if (connection != null) connection.close();
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,38 @@
+package com.example.client;
+
+/**
+ * One line of the chat view. Lines for stored messages carry the message ID and sequence
+ * number; local lines (our own echo, notices, errors) have a null ID and seq 0.
+ */
+public class ChatLine {
+    private final String messageId;
+    private final long seq;
+    private final String text;
+
+    public ChatLine(String messageId, long seq, String text) {
+        this.messageId = messageId;
+        this.seq = seq;
+        this.text = text;
+    }
+
+    public static ChatLine local(String text) {
+        return new ChatLine(null, 0, text);
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.client;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The lines of the open conversation, shown by a ListView that only lays out the cells on
+ * screen, so appending and scrolling cost the same however long the conversation is. The
+ * model itself keeps at most {@code capacity} lines: appending past it drops the oldest
+ * lines, which can be fetched again as an older page, and prepending past it drops the
+ * newest, which are reloaded when the user scrolls back down.
+ */
+public class ChatTranscript {
+    private final int capacity;
+    private final ObservableList<ChatLine> lines = FXCollections.observableArrayList();
+    private boolean newerDropped;
+
+    public ChatTranscript(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public ObservableList<ChatLine> getLines() {
+        return lines;
+    }
+
+    /** Adds lines at the bottom; returns true if older lines were dropped to make room. */
+    public boolean append(List<ChatLine> batch) {
+        lines.addAll(batch);
+        int excess = lines.size() - capacity;
+        if (excess <= 0) return false;
+        // Cut just above a stored message, so the older history can be fetched again from it.
+        int cut = excess;
+        while (cut < lines.size() && lines.get(cut).getMessageId() == null) cut++;
+        lines.remove(0, cut < lines.size() ? cut : excess);
+        return true;
+    }
+
+    /** Adds an older page at the top, dropping the newest lines if that goes past the cap. */
+    public void prepend(List<ChatLine> batch) {
+        lines.addAll(0, batch);
+        if (lines.size() > capacity) {
+            lines.remove(capacity, lines.size());
+            newerDropped = true;
+        }
+    }
+
+    /** Whether the newest lines were dropped; live messages are not appended until they are reloaded. */
+    public boolean isNewerDropped() {
+        return newerDropped;
+    }
+
+    /** The ID of the oldest stored message shown, usable as a history cursor; null if there is none. */
+    public String getOldestMessageId() {
+        for (ChatLine line : lines) {
+            if (line.getMessageId() != null) return line.getMessageId();
+        }
+        return null;
+    }
+
+    /** Swaps a line for another in place, searching from the newest; false if it is no longer shown. */
+    public boolean replace(ChatLine line, ChatLine replacement) {
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            if (lines.get(i) == line) {
+                lines.set(i, replacement);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void reset(List<ChatLine> restored) {
+        lines.setAll(restored);
+        newerDropped = false;
+    }
+
+    public void clear() {
+        lines.clear();
+        newerDropped = false;
+    }
+
+    public List<ChatLine> copy() {
+        return new ArrayList<>(lines);
+    }
+}
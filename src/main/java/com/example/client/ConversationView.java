@@ -0,0 +1,365 @@
+package com.example.client;
+
+import com.example.protocol.Frame;
+import com.example.protocol.Opcode;
+import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.Scene;
+import javafx.scene.control.*;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * One conversation's scene (chat and files tabs) together with the state behind it: the
+ * transcript, the files, history paging and the sync position. Views are built once and
+ * kept in a {@link ConversationViewPool}, so switching back to a conversation only swaps
+ * the stage's scene, and frames for a conversation update its own view whether it is
+ * showing or not.
+ */
+class ConversationView {
+    /** What the view asks of the app for actions that involve the connection or dialogs. */
+    interface Actions {
+        void back(ConversationView view);
+
+        void sendMessage(ConversationView view, String text);
+
+        void sendFile(ConversationView view);
+
+        void download(ConversationView view, Attachment file);
+    }
+
+    private final String conversationId;
+    private final String title;
+    private final int pageSize;
+    private final Consumer<Frame> sender;
+    private final Actions actions;
+    private final ChatTranscript transcript;
+    private final AttachmentModel attachments = new AttachmentModel();
+    private final Scene scene;
+    private ListView<ChatLine> chatList;
+    private TextField inputField;
+
+    // History paging
+    private final List<ChatLine> pendingHistoryPage = new ArrayList<>();
+    private String olderHistoryCursor;
+    private boolean historyLoaded;
+    private boolean loadingOlderHistory;
+
+    // Incremental sync: the newest sequence number shown, and a SYNC reply being collected
+    private long lastSeq;
+    private final List<ChatLine> pendingSync = new ArrayList<>();
+    private long pendingSyncSeq;
+
+    // Our own messages, echoed as local lines until MESSAGE_SAVED gives them an ID and seq
+    private final Deque<ChatLine> unconfirmed = new ArrayDeque<>();
+
+    ConversationView(String conversationId, String title, int maxLines, int pageSize, Consumer<Frame> sender,
+                     Actions actions) {
+        this.conversationId = conversationId;
+        this.title = title;
+        this.pageSize = pageSize;
+        this.sender = sender;
+        this.actions = actions;
+        this.transcript = new ChatTranscript(maxLines);
+        TabPane tabPane = new TabPane();
+        Tab chatTab = new Tab("Chat", buildChatUI());
+        chatTab.setClosable(false);
+        Tab filesTab = new Tab("Files", buildFilesUI());
+        filesTab.setClosable(false);
+        tabPane.getTabs().addAll(chatTab, filesTab);
+        scene = new Scene(tabPane, 600, 400);
+    }
+
+    String getConversationId() {
+        return conversationId;
+    }
+
+    String getTitle() {
+        return title;
+    }
+
+    Scene getScene() {
+        return scene;
+    }
+
+    AttachmentModel getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * Builds the Chat UI with a "Back to Conversations" button.
+     */
+    private VBox buildChatUI() {
+        VBox root = new VBox(10);
+        root.setPadding(new Insets(10));
+
+        // Back button to return to the conversations list
+        Button backButton = new Button("Back to Conversations");
+        backButton.setOnAction(e -> actions.back(this));
+
+        chatList = new ListView<>(transcript.getLines());
+        chatList.setFocusTraversable(false);
+        chatList.setCellFactory(list -> new ListCell<>() {
+            {
+                setWrapText(true);
+                prefWidthProperty().bind(list.widthProperty().subtract(20));
+                setMaxWidth(Control.USE_PREF_SIZE);
+            }
+
+            @Override
+            protected void updateItem(ChatLine line, boolean empty) {
+                super.updateItem(line, empty);
+                setText(empty || line == null ? null : line.getText());
+            }
+        });
+        VBox.setVgrow(chatList, Priority.ALWAYS);
+        // Scrolling up past the top fetches the next older page; scrolling down past the
+        // bottom reloads the newest messages if they were dropped to make room.
+        chatList.addEventFilter(ScrollEvent.SCROLL, e -> {
+            ScrollBar bar = chatScrollBar();
+            if (e.getDeltaY() > 0 && (bar == null || bar.getValue() <= bar.getMin())) {
+                requestOlderHistory();
+            } else if (e.getDeltaY() < 0 && transcript.isNewerDropped() && !loadingOlderHistory && isChatAtBottom()) {
+                loadLatestPage();
+            }
+        });
+
+        inputField = new TextField();
+        inputField.setPromptText("Type your message...");
+
+        Button sendButton = new Button("Send");
+        sendButton.setOnAction(e -> submitInput());
+        inputField.setOnAction(e -> submitInput());
+
+        Button sendFileButton = new Button("Send File");
+        sendFileButton.setOnAction(e -> actions.sendFile(this));
+
+        HBox inputBox = new HBox(10, inputField, sendButton, sendFileButton);
+        root.getChildren().addAll(backButton, chatList, inputBox);
+        return root;
+    }
+
+    private Pane buildFilesUI() {
+        VBox root = new VBox(10);
+        root.setPadding(new Insets(10));
+        ListView<Attachment> filesListView = new ListView<>(attachments.getView());
+        filesListView.setOnMouseClicked(event -> {
+            if (event.getClickCount() == 2) {
+                Attachment selectedFile = filesListView.getSelectionModel().getSelectedItem();
+                if (selectedFile != null) {
+                    actions.download(this, selectedFile);
+                }
+            }
+        });
+        TextField filterField = new TextField();
+        filterField.setPromptText("Filter by name or sender");
+        filterField.textProperty().addListener((obs, old, text) -> attachments.setFilter(text));
+        ChoiceBox<AttachmentModel.Order> orderBox = new ChoiceBox<>();
+        orderBox.getItems().setAll(AttachmentModel.Order.values());
+        orderBox.setValue(attachments.getOrder());
+        orderBox.valueProperty().addListener((obs, old, order) -> {
+            if (order != null) attachments.setOrder(order);
+        });
+        HBox.setHgrow(filterField, Priority.ALWAYS);
+        HBox controls = new HBox(10, filterField, orderBox);
+        Label instructions = new Label("Double-click a file to download.");
+        root.getChildren().addAll(controls, instructions, filesListView);
+        return root;
+    }
+
+    private void submitInput() {
+        String text = inputField.getText().trim();
+        if (!text.isEmpty()) actions.sendMessage(this, text);
+    }
+
+    void clearInput() {
+        inputField.clear();
+    }
+
+    // -------------------- Loading --------------------
+
+    /** Shows lines stored on disk and fetches only the messages after them. */
+    void showStored(List<ChatLine> lines) {
+        transcript.reset(lines);
+        chatList.scrollTo(transcript.getLines().size() - 1);
+        // Older history continues above the oldest stored line.
+        olderHistoryCursor = lines.get(0).getMessageId();
+        lastSeq = lines.get(lines.size() - 1).getSeq();
+        historyLoaded = true;
+        loadingOlderHistory = false;
+        sender.accept(Frame.of(Opcode.SYNC, conversationId, lastSeq));
+    }
+
+    /** Starts the conversation over from its newest page. */
+    void loadLatestPage() {
+        transcript.clear();
+        unconfirmed.clear();
+        pendingHistoryPage.clear();
+        olderHistoryCursor = null;
+        historyLoaded = false;
+        loadingOlderHistory = true;
+        // Only the latest page is loaded up front; older pages follow as the user scrolls up.
+        sender.accept(Frame.of(Opcode.GET_MESSAGES_PAGE, conversationId, pageSize, ""));
+    }
+
+    /** Fetches the files shared since the Files tab was last up to date. */
+    void requestFiles() {
+        sender.accept(Frame.of(Opcode.GET_FILES, conversationId, attachments.getLastSeq()));
+    }
+
+    /** After a resume the server could not replay: fetches what was missed, or starts over. */
+    void catchUp() {
+        if (historyLoaded && lastSeq > 0 && !transcript.isNewerDropped()) {
+            pendingSync.clear();
+            sender.accept(Frame.of(Opcode.SYNC, conversationId, lastSeq));
+        } else {
+            loadLatestPage();
+        }
+    }
+
+    /** Whether the lines shown are the newest ones without gaps, and so can be stored. */
+    boolean isUpToDate() {
+        return historyLoaded && !transcript.isNewerDropped();
+    }
+
+    /**
+     * The lines that can be stored: all of them, or only those above our oldest message the
+     * server has not confirmed yet. Lines after it may have higher seqs, and storing them
+     * would leave a gap that a later SYNC from the stored lastSeq never fills.
+     */
+    List<ChatLine> getStorableLines() {
+        List<ChatLine> lines = transcript.getLines();
+        ChatLine oldestUnconfirmed = unconfirmed.peek();
+        if (oldestUnconfirmed == null) return lines;
+        int end = lines.indexOf(oldestUnconfirmed);
+        return end < 0 ? lines : lines.subList(0, end);
+    }
+
+    // -------------------- History paging --------------------
+
+    private void requestOlderHistory() {
+        if (loadingOlderHistory || olderHistoryCursor == null) return;
+        loadingOlderHistory = true;
+        sender.accept(Frame.of(Opcode.GET_MESSAGES_PAGE, conversationId, pageSize, olderHistoryCursor));
+    }
+
+    void addHistoryLine(ChatLine line) {
+        noteSeq(line.getSeq());
+        pendingHistoryPage.add(line);
+    }
+
+    /**
+     * Applies a finished history page: the first page is appended (scrolling to the newest
+     * message), older pages are inserted above what is already shown.
+     */
+    void applyHistoryPage(String nextCursor) {
+        if (!pendingHistoryPage.isEmpty()) {
+            if (historyLoaded) {
+                transcript.prepend(pendingHistoryPage);
+                // Keep the line that was at the top in view.
+                chatList.scrollTo(pendingHistoryPage.size());
+            } else {
+                transcript.append(pendingHistoryPage);
+                chatList.scrollTo(transcript.getLines().size() - 1);
+            }
+        }
+        pendingHistoryPage.clear();
+        olderHistoryCursor = nextCursor.isEmpty() ? null : nextCursor;
+        historyLoaded = true;
+        loadingOlderHistory = false;
+    }
+
+    // -------------------- Incremental sync --------------------
+
+    /** Records a SYNC_ITEM's position; the line is null if it was already shown. */
+    void addSyncLine(long seq, ChatLine line) {
+        pendingSyncSeq = seq;
+        noteSeq(seq);
+        if (line != null) pendingSync.add(line);
+    }
+
+    /** Appends the messages collected from SYNC_ITEMs and asks for the rest if there are more. */
+    void applySync(boolean more) {
+        appendLines(pendingSync);
+        pendingSync.clear();
+        if (more) sender.accept(Frame.of(Opcode.SYNC, conversationId, pendingSyncSeq));
+    }
+
+    /** The server skipped our messages or files from fromSeq on; fetches them again. */
+    void resync(long fromSeq) {
+        if (historyLoaded) sender.accept(Frame.of(Opcode.SYNC, conversationId, Math.min(lastSeq, fromSeq - 1)));
+        requestFiles();
+    }
+
+    /** Records the sequence number of a message shown in this conversation. */
+    void noteSeq(long seq) {
+        if (seq > lastSeq) lastSeq = seq;
+    }
+
+    // -------------------- Transcript --------------------
+
+    /**
+     * Adds lines at the bottom of the chat, following them if the view was already at the
+     * bottom. Nothing is added while the newest lines are dropped; they come back with the reload.
+     */
+    void appendLines(List<ChatLine> lines) {
+        if (lines.isEmpty() || transcript.isNewerDropped()) return;
+        boolean follow = isChatAtBottom();
+        if (transcript.append(lines)) {
+            // The oldest lines were dropped: older history now starts above the first one kept.
+            String oldest = transcript.getOldestMessageId();
+            if (oldest != null) olderHistoryCursor = oldest;
+        }
+        if (follow) chatList.scrollTo(transcript.getLines().size() - 1);
+    }
+
+    void appendLine(String text) {
+        appendLines(List.of(ChatLine.local(text)));
+    }
+
+    /** Echoes a message we sent, to be confirmed by {@link #confirmOwnMessage} once the server saves it. */
+    void appendOwnMessage(String text) {
+        if (transcript.isNewerDropped()) return;
+        ChatLine echo = ChatLine.local("You: " + text);
+        appendLines(List.of(echo));
+        unconfirmed.add(echo);
+    }
+
+    /**
+     * Gives the oldest unconfirmed echo the ID and seq from MESSAGE_SAVED (the server
+     * acknowledges a connection's messages in order), so it is stored and synced like any
+     * other message. Returns false if there was no echo, in which case the message is not
+     * shown and lastSeq stays where it was, leaving it to the next SYNC.
+     */
+    boolean confirmOwnMessage(String messageId, long seq) {
+        ChatLine echo = unconfirmed.poll();
+        if (echo == null) return false;
+        transcript.replace(echo, new ChatLine(messageId, seq, echo.getText()));
+        noteSeq(seq);
+        return true;
+    }
+
+    private ScrollBar chatScrollBar() {
+        for (Node node : chatList.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                return (ScrollBar) node;
+            }
+        }
+        return null;
+    }
+
+    private boolean isChatAtBottom() {
+        ScrollBar bar = chatScrollBar();
+        return bar == null || !bar.isVisible() || bar.getValue() >= bar.getMax();
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The live conversation views, keyed by conversation ID, least recently opened first.
+ * Looking a view up to route a frame to it does not count as opening it, so a busy
+ * conversation in the background cannot keep itself in the pool. Past the capacity, the
+ * least recently opened view is handed to {@code onEvict} and dropped.
+ */
+class ConversationViewPool {
+    private final int capacity;
+    private final Consumer<ConversationView> onEvict;
+    private final Map<String, ConversationView> views = new LinkedHashMap<>();
+
+    ConversationViewPool(int capacity, Consumer<ConversationView> onEvict) {
+        this.capacity = capacity;
+        this.onEvict = onEvict;
+    }
+
+    /** The live view for a conversation, or null; for routing frames. */
+    ConversationView get(String conversationId) {
+        return conversationId == null ? null : views.get(conversationId);
+    }
+
+    /** The view for a conversation, built with {@code create} if it is not live, marked most recently opened. */
+    ConversationView open(String conversationId, Function<String, ConversationView> create) {
+        ConversationView view = views.remove(conversationId);
+        if (view == null) view = create.apply(conversationId);
+        views.put(conversationId, view);
+        Iterator<ConversationView> eldest = views.values().iterator();
+        while (views.size() > capacity && eldest.hasNext()) {
+            ConversationView evicted = eldest.next();
+            eldest.remove();
+            onEvict.accept(evicted);
+        }
+        return view;
+    }
+
+    Collection<ConversationView> views() {
+        return views.values();
+    }
+
+    /** Drops every view, handing each to {@code onEvict} first. */
+    void clear() {
+        List<ConversationView> all = new ArrayList<>(views.values());
+        views.clear();
+        all.forEach(onEvict);
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.client;
+
+import com.example.protocol.Frame;
+import com.example.protocol.Opcode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Receives one file from the server chunk by chunk, writing each chunk straight to a
+ * ".part" file next to the destination and acknowledging it so the server sends more.
+ * The part file is renamed into place once DOWNLOAD_END arrives. After a reconnect,
+ * {@link #resume()} asks the server to continue from the bytes already on disk.
+ */
+class FileDownload {
+    private final String downloadId = UUID.randomUUID().toString();
+    private final String conversationId;
+    private final String fileKey;
+    private final String fileName;
+    private final Path target;
+    private final Path partFile;
+    private final Consumer<Frame> sender;
+    private final Consumer<String> onFinished;
+    private FileChannel channel;
+    private long received;
+
+    /** fileKey is what the server looks the file up by: its attachment ID, or its name for older servers. */
+    FileDownload(String conversationId, String fileKey, String fileName, Path target, Consumer<Frame> sender,
+                 Consumer<String> onFinished) {
+        this.conversationId = conversationId;
+        this.fileKey = fileKey;
+        this.fileName = fileName;
+        this.target = target;
+        this.partFile = target.resolveSibling(target.getFileName() + ".part");
+        this.sender = sender;
+        this.onFinished = onFinished;
+    }
+
+    String getDownloadId() {
+        return downloadId;
+    }
+
+    synchronized void start() throws IOException {
+        channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        received = 0;
+        sendBegin();
+    }
+
+    synchronized void resume() {
+        if (channel != null) sendBegin();
+    }
+
+    private void sendBegin() {
+        sender.accept(Frame.of(Opcode.DOWNLOAD_BEGIN, downloadId, conversationId, received, fileKey));
+    }
+
+    /**
+     * Called by the reader thread with a DOWNLOAD_* frame.
+     * Returns true once the download has finished, successfully or not.
+     */
+    synchronized boolean onReply(Frame frame) {
+        try {
+            switch (frame.getOpcode()) {
+                case DOWNLOAD_CHUNK:
+                    // DOWNLOAD_CHUNK|downloadId|offset|data
+                    if (frame.getLong(1) == received) {
+                        received += channel.write(ByteBuffer.wrap(frame.getBytes(2)), received);
+                    }
+                    sender.accept(Frame.of(Opcode.DOWNLOAD_ACK, downloadId, received));
+                    return false;
+                case DOWNLOAD_END:
+                    channel.close();
+                    Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+                    onFinished.accept(null);
+                    return true;
+                case DOWNLOAD_FAIL:
+                    fail("NOT_FOUND".equals(frame.size() > 1 ? frame.getString(1) : "")
+                            ? "File not found on server: " + fileName
+                            : "Error retrieving file: " + fileName);
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            fail("Error saving file: " + e.getMessage());
+            return true;
+        }
+    }
+
+    private void fail(String message) {
+        try {
+            channel.close();
+            Files.deleteIfExists(partFile);
+        } catch (IOException e) {
+            // Leave the partial file behind.
+        }
+        onFinished.accept(message);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.client;
+
+import com.example.protocol.Frame;
+import com.example.protocol.Opcode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Streams one file to the server in fixed-size chunks, reading each chunk from disk only
+ * when the server's window has room for it. Server replies are fed in by the reader thread;
+ * the upload itself runs on its own thread. Calling {@link #resume()} after a reconnect
+ * re-sends UPLOAD_BEGIN, and the server answers with the offset to continue from.
+ */
+class FileUpload implements Runnable {
+    private static final long REPLY_TIMEOUT_SECONDS = 60;
+
+    private final String uploadId = UUID.randomUUID().toString();
+    private final String conversationId;
+    private final Path path;
+    private final String fileName;
+    private final long size;
+    private final Consumer<Frame> sender;
+    private final Consumer<String> onFinished;
+    private final BlockingQueue<Frame> replies = new LinkedBlockingQueue<>();
+
+    FileUpload(String conversationId, Path path, long size, Consumer<Frame> sender, Consumer<String> onFinished) {
+        this.conversationId = conversationId;
+        this.path = path;
+        this.fileName = path.getFileName().toString();
+        this.size = size;
+        this.sender = sender;
+        this.onFinished = onFinished;
+    }
+
+    String getUploadId() {
+        return uploadId;
+    }
+
+    /** Called by the reader thread with an UPLOAD_* frame. */
+    void onReply(Frame frame) {
+        replies.add(frame);
+    }
+
+    void resume() {
+        sendBegin();
+    }
+
+    private void sendBegin() {
+        sender.accept(Frame.of(Opcode.UPLOAD_BEGIN, uploadId, conversationId, size, fileName));
+    }
+
+    @Override
+    public void run() {
+        String result;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            result = transfer(channel);
+        } catch (IOException e) {
+            result = "Error reading file: " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = "Upload interrupted: " + fileName;
+        }
+        onFinished.accept(result);
+    }
+
+    private String transfer(FileChannel channel) throws IOException, InterruptedException {
+        ByteBuffer chunk = null;
+        long nextOffset = 0;
+        int inFlight = 0;
+        int window = 1;
+        sendBegin();
+        while (true) {
+            Frame reply = replies.poll(REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (reply == null) return "Upload timed out: " + fileName;
+            switch (reply.getOpcode()) {
+                case UPLOAD_READY:
+                    // UPLOAD_READY|uploadId|offset|chunkSize|window
+                    nextOffset = reply.getLong(1);
+                    chunk = ByteBuffer.allocate((int) reply.getLong(2));
+                    window = (int) reply.getLong(3);
+                    inFlight = 0;
+                    break;
+                case UPLOAD_ACK:
+                    inFlight--;
+                    break;
+                case UPLOAD_DONE:
+                    return null;
+                case UPLOAD_FAIL:
+                    return "Upload of " + fileName + " failed: " + (reply.size() > 1 ? reply.getString(1) : "");
+                default:
+                    continue;
+            }
+            while (inFlight < window && nextOffset < size) {
+                chunk.clear();
+                int read = channel.read(chunk, nextOffset);
+                if (read <= 0) throw new IOException("File changed while uploading");
+                chunk.flip();
+                byte[] bytes = new byte[read];
+                chunk.get(bytes);
+                sender.accept(Frame.of(Opcode.UPLOAD_CHUNK, uploadId, nextOffset, bytes));
+                nextOffset += read;
+                inFlight++;
+            }
+            if (inFlight == 0 && nextOffset >= size) {
+                sender.accept(Frame.of(Opcode.UPLOAD_END, uploadId));
+            }
+        }
+    }
+}
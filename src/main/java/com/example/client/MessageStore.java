@@ -0,0 +1,246 @@
+package com.example.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The user's messages on disk, so a conversation can be shown as soon as it is opened and
+ * only the messages after the newest cached one fetched with SYNC.
+ * <p>
+ * Each conversation has an append-only log of (seq, messageId, text) records and an index
+ * of fixed-size (seq, offset) entries, so the newest lines are read with one seek instead
+ * of scanning the log. The store is capped at {@code maxBytes}; past that, whole
+ * conversations are dropped, least recently opened first. The cache is best effort: any
+ * I/O error just means the conversation is fetched from the server as before.
+ */
+class MessageStore {
+    private static final int INDEX_ENTRY_BYTES = 16;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    MessageStore(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /** The store for one user under ~/.javafx-chat/cache; the directory name is a hash of the email. */
+    static MessageStore forUser(String email, long maxBytes) {
+        return new MessageStore(Paths.get(System.getProperty("user.home"), ".javafx-chat", "cache", hash(email)),
+                maxBytes);
+    }
+
+    /** The newest {@code limit} cached lines of a conversation, oldest first; empty if none are cached. */
+    synchronized List<ChatLine> load(String conversationId, int limit) {
+        Path log = logFile(conversationId);
+        Path index = indexFile(conversationId);
+        if (!Files.exists(log) || !Files.exists(index)) return List.of();
+        try (FileChannel logChannel = FileChannel.open(log, StandardOpenOption.READ);
+             FileChannel indexChannel = FileChannel.open(index, StandardOpenOption.READ)) {
+            long entries = indexChannel.size() / INDEX_ENTRY_BYTES;
+            long first = Math.max(0, entries - limit);
+            if (first == entries) return List.of();
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+            readFully(indexChannel, entry, first * INDEX_ENTRY_BYTES);
+            long start = entry.getLong(8);
+            long end = logChannel.size();
+            ByteBuffer records = ByteBuffer.allocate((int) (end - start));
+            readFully(logChannel, records, start);
+            List<ChatLine> lines = new ArrayList<>((int) (entries - first));
+            for (long i = first; i < entries && records.remaining() >= 12; i++) {
+                lines.add(readRecord(records));
+            }
+            Files.setLastModifiedTime(log, FileTime.fromMillis(System.currentTimeMillis()));
+            return lines;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Discarding message cache for " + conversationId + ": " + e.getMessage());
+            delete(conversationId);
+            return List.of();
+        }
+    }
+
+    /**
+     * Writes the stored messages among {@code lines} (a contiguous stretch of the
+     * conversation, oldest first). If they overlap what is cached, only the newer ones are
+     * appended; if they do not, there may be a gap, so the log is started over from them.
+     */
+    synchronized void save(String conversationId, List<ChatLine> lines) {
+        List<ChatLine> stored = new ArrayList<>(lines.size());
+        for (ChatLine line : lines) {
+            if (line.getMessageId() != null && line.getSeq() > 0) stored.add(line);
+        }
+        if (stored.isEmpty()) return;
+        try {
+            Files.createDirectories(directory);
+            long cachedSeq = lastSeq(conversationId);
+            boolean overlaps = false;
+            for (ChatLine line : stored) {
+                if (line.getSeq() == cachedSeq) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (cachedSeq > 0 && !overlaps) delete(conversationId);
+            long after = overlaps ? cachedSeq : 0;
+            append(conversationId, stored, after);
+            evict(conversationId);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not cache messages for " + conversationId + ": " + e.getMessage());
+            delete(conversationId);
+        }
+    }
+
+    private void append(String conversationId, List<ChatLine> lines, long afterSeq) throws IOException {
+        try (FileChannel log = FileChannel.open(logFile(conversationId), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel index = FileChannel.open(indexFile(conversationId), StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Records past the last index entry were never indexed (an interrupted write) and are overwritten.
+            long offset = indexedEnd(log, index);
+            long indexEnd = index.size() - index.size() % INDEX_ENTRY_BYTES;
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            DataOutputStream records = new DataOutputStream(recordBytes);
+            ByteBuffer entries = ByteBuffer.allocate(lines.size() * INDEX_ENTRY_BYTES);
+            for (ChatLine line : lines) {
+                if (line.getSeq() <= afterSeq) continue;
+                entries.putLong(line.getSeq()).putLong(offset + records.size());
+                byte[] id = line.getMessageId().getBytes(StandardCharsets.UTF_8);
+                byte[] text = line.getText().getBytes(StandardCharsets.UTF_8);
+                records.writeLong(line.getSeq());
+                records.writeShort(id.length);
+                records.write(id);
+                records.writeInt(text.length);
+                records.write(text);
+                afterSeq = line.getSeq();
+            }
+            if (entries.position() == 0) return;
+            // The log is written before the index, so an index entry never points past the log.
+            log.truncate(offset);
+            writeFully(log, ByteBuffer.wrap(recordBytes.toByteArray()), offset);
+            entries.flip();
+            index.truncate(indexEnd);
+            writeFully(index, entries, indexEnd);
+        }
+    }
+
+    /** Where the next record goes: the end of the last indexed record. */
+    private static long indexedEnd(FileChannel log, FileChannel index) throws IOException {
+        long entries = index.size() / INDEX_ENTRY_BYTES;
+        if (entries == 0) return 0;
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+        readFully(index, entry, (entries - 1) * INDEX_ENTRY_BYTES);
+        long start = entry.getLong(8);
+        ByteBuffer header = ByteBuffer.allocate(10);
+        readFully(log, header, start);
+        int idLength = header.getShort(8) & 0xFFFF;
+        ByteBuffer textLength = ByteBuffer.allocate(4);
+        readFully(log, textLength, start + 10 + idLength);
+        return start + 10 + idLength + 4 + textLength.getInt(0);
+    }
+
+    /** The sequence number of the newest cached message, or 0 if the conversation has none. */
+    private long lastSeq(String conversationId) throws IOException {
+        Path index = indexFile(conversationId);
+        if (!Files.exists(index)) return 0;
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            long entries = channel.size() / INDEX_ENTRY_BYTES;
+            if (entries == 0) return 0;
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+            readFully(channel, entry, (entries - 1) * INDEX_ENTRY_BYTES);
+            return entry.getLong(0);
+        }
+    }
+
+    /** Drops the least recently opened conversations until the store fits in maxBytes. */
+    private void evict(String keepConversationId) throws IOException {
+        Path keep = logFile(keepConversationId);
+        Map<Path, FileTime> lastOpened = new HashMap<>();
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                total += Files.size(file);
+                if (file.getFileName().toString().endsWith(".log")) {
+                    lastOpened.put(file, Files.getLastModifiedTime(file));
+                }
+            }
+        }
+        if (total <= maxBytes) return;
+        List<Path> logs = new ArrayList<>(lastOpened.keySet());
+        logs.sort(Comparator.comparing(lastOpened::get));
+        for (Path log : logs) {
+            if (total <= maxBytes) break;
+            if (log.equals(keep)) continue;
+            Path index = log.resolveSibling(log.getFileName().toString().replace(".log", ".idx"));
+            total -= Files.size(log) + (Files.exists(index) ? Files.size(index) : 0);
+            Files.deleteIfExists(log);
+            Files.deleteIfExists(index);
+        }
+    }
+
+    private void delete(String conversationId) {
+        try {
+            Files.deleteIfExists(logFile(conversationId));
+            Files.deleteIfExists(indexFile(conversationId));
+        } catch (IOException e) {
+            System.err.println("Could not delete message cache for " + conversationId + ": " + e.getMessage());
+        }
+    }
+
+    private static ChatLine readRecord(ByteBuffer records) {
+        long seq = records.getLong();
+        byte[] id = new byte[records.getShort() & 0xFFFF];
+        records.get(id);
+        byte[] text = new byte[records.getInt()];
+        records.get(text);
+        return new ChatLine(new String(id, StandardCharsets.UTF_8), seq, new String(text, StandardCharsets.UTF_8));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new IOException("Truncated cache file");
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private Path logFile(String conversationId) {
+        return directory.resolve(hash(conversationId) + ".log");
+    }
+
+    private Path indexFile(String conversationId) {
+        return directory.resolve(hash(conversationId) + ".idx");
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
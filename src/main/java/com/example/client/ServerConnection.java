@@ -0,0 +1,86 @@
+package com.example.client;
+
+import com.example.protocol.Features;
+import com.example.protocol.Frame;
+import com.example.protocol.FrameReader;
+import com.example.protocol.FrameWriter;
+import com.example.protocol.Opcode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+
+/**
+ * A socket to the chat server that sends and receives frames. On connect it offers the
+ * binary protocol, batched replies and session resumption with HELLO|BIN1,BATCH,RESUME and
+ * uses whichever the server accepts. A server that
+ * predates HELLO rejects it and hangs up, in which case we reconnect and stay on text.
+ */
+class ServerConnection implements Closeable {
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private final Socket socket;
+    private final FrameReader in;
+    private final FrameWriter out;
+    private boolean resumable;
+
+    private ServerConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new FrameReader(socket.getInputStream(), MAX_FRAME_BYTES);
+        this.out = new FrameWriter(socket.getOutputStream());
+    }
+
+    static ServerConnection open(String host, int port) throws IOException {
+        ServerConnection connection = new ServerConnection(new Socket(host, port));
+        if (connection.negotiate()) return connection;
+        connection.close();
+        return new ServerConnection(new Socket(host, port));
+    }
+
+    /** Returns false if the server did not understand HELLO and the socket cannot be used. */
+    private boolean negotiate() throws IOException {
+        out.write(Frame.of(Opcode.HELLO, Features.BINARY + "," + Features.BATCH + "," + Features.RESUME));
+        out.flush();
+        Frame reply = in.read();
+        if (reply == null || reply.getOpcode() != Opcode.HELLO_OK) return false;
+        if (reply.size() > 0) {
+            Set<String> accepted = Features.parse(reply.getString(0));
+            if (accepted.contains(Features.BINARY)) {
+                in.switchToBinary();
+                out.switchToBinary();
+            }
+            resumable = accepted.contains(Features.RESUME);
+        }
+        return true;
+    }
+
+    boolean isBinary() {
+        return out.isBinary();
+    }
+
+    /** Whether the server accepted RESUME, and so names the conversation in what it pushes. */
+    boolean isResumable() {
+        return resumable;
+    }
+
+    /** Writes one frame; a failed write is left for the reader thread to notice. */
+    void send(Frame frame) {
+        try {
+            out.write(frame);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not send " + frame.getOpcode() + ": " + e.getMessage());
+        }
+    }
+
+    /** Blocks for the next frame from the server, or returns null once it has hung up. */
+    Frame read() throws IOException {
+        return in.read();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
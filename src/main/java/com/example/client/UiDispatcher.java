@@ -0,0 +1,115 @@
+package com.example.client;
+
+import com.example.protocol.Frame;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Hands frames from the reader thread to the FX thread in batches. The reader only adds to
+ * a lock-free queue; an AnimationTimer, running only while there is work, drains it once per
+ * pulse and passes on runs of consecutive frames with the same opcode together, so a burst
+ * becomes a few model updates instead of thousands of runLater calls. A pulse stops after
+ * {@link #PULSE_BUDGET_NANOS} so input events still get their turn. Each pulse's duration is
+ * recorded; pulses slower than {@link #SLOW_PULSE_NANOS} are logged as they happen, and
+ * {@link #summary()} reports the rest.
+ */
+public class UiDispatcher {
+    private static final long PULSE_BUDGET_NANOS = 8_000_000;
+    /** Pulses slower than this are logged; anything near it is a visible stall. */
+    private static final long SLOW_PULSE_NANOS = 100_000_000;
+
+    /** Single frames, or whole BATCH replies as a List. */
+    private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Consumer<List<Frame>> handler;
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            pulse();
+        }
+    };
+
+    // Written and read on the FX thread only
+    private long pulseCount;
+    private long totalPulseNanos;
+    private long maxPulseNanos;
+    private long lastPulseNanos;
+
+    public UiDispatcher(Consumer<List<Frame>> handler) {
+        this.handler = handler;
+    }
+
+    /** Queues one frame; safe from any thread. */
+    public void submit(Frame frame) {
+        pending.add(frame);
+        wake();
+    }
+
+    /** Queues the frames of one BATCH reply, which are always applied together. */
+    public void submitBatch(List<Frame> batch) {
+        pending.add(batch);
+        wake();
+    }
+
+    private void wake() {
+        if (running.compareAndSet(false, true)) {
+            Platform.runLater(timer::start);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void pulse() {
+        long start = System.nanoTime();
+        List<Frame> run = new ArrayList<>();
+        Object next;
+        while ((next = pending.poll()) != null) {
+            if (next instanceof List) {
+                flushRun(run);
+                handler.accept((List<Frame>) next);
+            } else {
+                Frame frame = (Frame) next;
+                if (!run.isEmpty() && run.get(0).getOpcode() != frame.getOpcode()) flushRun(run);
+                run.add(frame);
+            }
+            if (System.nanoTime() - start > PULSE_BUDGET_NANOS) break;
+        }
+        flushRun(run);
+        record(System.nanoTime() - start);
+        if (pending.isEmpty()) {
+            timer.stop();
+            running.set(false);
+            // A frame may have arrived after the check; whoever wins the flag restarts the timer.
+            if (!pending.isEmpty() && running.compareAndSet(false, true)) timer.start();
+        }
+    }
+
+    private void flushRun(List<Frame> run) {
+        if (run.isEmpty()) return;
+        handler.accept(new ArrayList<>(run));
+        run.clear();
+    }
+
+    private void record(long nanos) {
+        pulseCount++;
+        totalPulseNanos += nanos;
+        lastPulseNanos = nanos;
+        if (nanos > maxPulseNanos) maxPulseNanos = nanos;
+        if (nanos > SLOW_PULSE_NANOS) {
+            System.err.println("Slow UI update: " + nanos / 1_000_000 + " ms, " + pending.size() + " items still queued");
+        }
+    }
+
+    /** Pulse count and last, average and max pulse duration so far, or null before the first pulse. */
+    public String summary() {
+        if (pulseCount == 0) return null;
+        return String.format("%d UI pulses, last %.2f ms, average %.2f ms, max %.2f ms", pulseCount,
+                lastPulseNanos / 1e6, totalPulseNanos / 1e6 / pulseCount, maxPulseNanos / 1e6);
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing, negotiated with HELLO|BIN1:
+ *
+ * <pre>
+ *   int32  length of everything that follows
+ *   byte   opcode
+ *   byte   field count
+ *   fields, each a type byte followed by its value:
+ *     1 string  int32 byte length + UTF-8 bytes
+ *     2 long    int64
+ *     3 bytes   int32 length + raw bytes
+ * </pre>
+ *
+ * Field values never need escaping, so text may contain '|' or newlines, and file chunks
+ * travel as raw bytes rather than base64.
+ */
+public final class BinaryCodec {
+    public static final int HEADER_SIZE = 4;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_BYTES = 3;
+
+    private final int maxFrameSize;
+
+    public BinaryCodec(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Returns the total size (header included) of the frame starting at the buffer's position,
+     * or -1 if the length prefix has not fully arrived yet.
+     */
+    public int frameSize(ByteBuffer in) {
+        if (in.remaining() < HEADER_SIZE) return -1;
+        int length = in.getInt(in.position());
+        if (length < 2 || length > maxFrameSize) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * Decodes the complete frame at the buffer's position and advances past it. Returns null
+     * for a frame with an unknown opcode, which is skipped. Every read is checked against the
+     * frame's length first, so a malformed frame is a ProtocolException and never reads into
+     * the next one.
+     */
+    public Frame decode(ByteBuffer in) {
+        require(in, in.limit(), HEADER_SIZE);
+        int length = in.getInt();
+        int end = in.position() + length;
+        if (length < 2 || end > in.limit()) throw new ProtocolException("Invalid frame length " + length);
+        Opcode opcode = Opcode.fromCode(in.get());
+        int count = in.get() & 0xFF;
+        if (opcode == null) {
+            in.position(end);
+            return null;
+        }
+        Object[] fields = new Object[count];
+        for (int i = 0; i < count; i++) {
+            require(in, end, 1);
+            byte type = in.get();
+            switch (type) {
+                case TYPE_STRING: {
+                    int size = checkedSize(in, end);
+                    fields[i] = new String(in.array(), in.arrayOffset() + in.position(), size, StandardCharsets.UTF_8);
+                    in.position(in.position() + size);
+                    break;
+                }
+                case TYPE_LONG:
+                    require(in, end, 8);
+                    fields[i] = in.getLong();
+                    break;
+                case TYPE_BYTES: {
+                    byte[] bytes = new byte[checkedSize(in, end)];
+                    in.get(bytes);
+                    fields[i] = bytes;
+                    break;
+                }
+                default:
+                    throw new ProtocolException("Unknown field type " + type);
+            }
+        }
+        if (in.position() != end) throw new ProtocolException("Frame length mismatch");
+        return Frame.of(opcode, fields);
+    }
+
+    private static int checkedSize(ByteBuffer in, int end) {
+        require(in, end, 4);
+        int size = in.getInt();
+        if (size < 0 || in.position() + size > end) throw new ProtocolException("Field overruns frame");
+        return size;
+    }
+
+    private static void require(ByteBuffer in, int end, int bytes) {
+        if (end - in.position() < bytes) throw new ProtocolException("Field overruns frame");
+    }
+
+    /** Appends the encoded frame to the buffer. */
+    public static void encode(Frame frame, OutputBuffer out) {
+        ByteBuffer b = out.ensure(HEADER_SIZE + 2);
+        int start = b.position();
+        b.position(start + HEADER_SIZE);
+        b.put(frame.getOpcode().getCode()).put((byte) frame.size());
+        for (int i = 0; i < frame.size(); i++) {
+            Object field = frame.field(i);
+            if (field instanceof Long) {
+                out.ensure(9).put(TYPE_LONG).putLong((Long) field);
+            } else if (field instanceof byte[]) {
+                byte[] bytes = (byte[]) field;
+                out.ensure(5 + bytes.length).put(TYPE_BYTES).putInt(bytes.length).put(bytes);
+            } else {
+                b = out.ensure(5).put(TYPE_STRING);
+                int lengthAt = b.position();
+                b.position(lengthAt + 4);
+                int length = out.putUtf8((String) field);
+                out.ensure(0).putInt(lengthAt, length);
+            }
+        }
+        b = out.ensure(0);
+        b.putInt(start, b.position() - start - HEADER_SIZE);
+    }
+}
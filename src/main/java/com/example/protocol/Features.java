@@ -0,0 +1,40 @@
+package com.example.protocol;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Optional protocol features, offered by the client in HELLO|features and echoed back in
+ * HELLO_OK with the subset the server accepted. Both lists are comma-separated.
+ */
+public final class Features {
+    /** The length-prefixed binary framing of {@link BinaryCodec}. */
+    public static final String BINARY = "BIN1";
+    /** Multi-item replies preceded by a BATCH|count header, so they can be applied at once. */
+    public static final String BATCH = "BATCH";
+    /** Resume tokens (SESSION, RESUME) and MESSAGE pushes that carry their message ID. */
+    public static final String RESUME = "RESUME";
+
+    private Features() {
+    }
+
+    public static Set<String> parse(String list) {
+        Set<String> features = new LinkedHashSet<>();
+        for (String feature : list.split(",")) {
+            if (!feature.isBlank()) features.add(feature.trim());
+        }
+        return features;
+    }
+
+    public static String join(Set<String> features) {
+        return String.join(",", features);
+    }
+
+    /** The features both sides support, in the order they were offered. */
+    public static Set<String> accept(String offered, String... supported) {
+        Set<String> accepted = parse(offered);
+        accepted.retainAll(Arrays.asList(supported));
+        return accepted;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * One protocol message: an opcode and its fields. A field is a String, a Long or a byte[].
+ * Frames decoded from the text protocol only contain strings, so the accessors convert
+ * between representations: numbers are parsed and byte fields are base64-decoded.
+ */
+public final class Frame {
+    private final Opcode opcode;
+    private final Object[] fields;
+
+    private Frame(Opcode opcode, Object[] fields) {
+        this.opcode = opcode;
+        this.fields = fields;
+    }
+
+    public static Frame of(Opcode opcode, Object... fields) {
+        if (fields.getClass() != Object[].class) {
+            fields = Arrays.copyOf(fields, fields.length, Object[].class);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            Object field = fields[i];
+            if (field == null) {
+                fields[i] = "";
+            } else if (field instanceof Integer) {
+                fields[i] = ((Integer) field).longValue();
+            } else if (!(field instanceof String || field instanceof Long || field instanceof byte[])) {
+                fields[i] = field.toString();
+            }
+        }
+        return new Frame(opcode, fields);
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    Object field(int index) {
+        return fields[index];
+    }
+
+    public String getString(int index) {
+        Object field = fields[index];
+        if (field instanceof String) return (String) field;
+        if (field instanceof byte[]) return new String((byte[]) field, StandardCharsets.UTF_8);
+        return field.toString();
+    }
+
+    /** Returns the field as a number; throws NumberFormatException if it is not one. */
+    public long getLong(int index) {
+        Object field = fields[index];
+        if (field instanceof Long) return (Long) field;
+        return Long.parseLong(getString(index).trim());
+    }
+
+    /** Whether the field arrived as raw bytes, as opposed to text that may hold base64. */
+    public boolean isBytes(int index) {
+        return fields[index] instanceof byte[];
+    }
+
+    /** Returns the field as bytes; text frames carry binary data base64-encoded. */
+    public byte[] getBytes(int index) {
+        Object field = fields[index];
+        if (field instanceof byte[]) return (byte[]) field;
+        return Base64.getDecoder().decode(getString(index));
+    }
+
+    @Override
+    public String toString() {
+        return TextCodec.encode(this);
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a blocking stream in either protocol. It starts in text mode and can
+ * be switched to binary once both sides have agreed on it; because it does its own
+ * buffering, no bytes are lost at the switch.
+ */
+public class FrameReader {
+    private final InputStream in;
+    private final BinaryCodec codec;
+    private final int maxFrameSize;
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+    private volatile boolean binary;
+
+    public FrameReader(InputStream in, int maxFrameSize) {
+        this.in = in;
+        this.maxFrameSize = maxFrameSize;
+        this.codec = new BinaryCodec(maxFrameSize);
+        buffer.flip();
+    }
+
+    public void switchToBinary() {
+        binary = true;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** Returns the next frame with a known command, or null at end of stream. */
+    public Frame read() throws IOException {
+        return read(() -> { });
+    }
+
+    /**
+     * Returns the next frame with a known command, or null at end of stream. Frames with an
+     * unknown command are skipped, calling {@code onUnknown} for each.
+     */
+    public Frame read(Runnable onUnknown) throws IOException {
+        while (true) {
+            Frame frame;
+            if (binary) {
+                int size;
+                while ((size = codec.frameSize(buffer)) < 0 || buffer.remaining() < size) {
+                    if (!fill(size)) return null;
+                }
+                frame = codec.decode(buffer);
+            } else {
+                int end = nextLineEnd();
+                if (end < 0) return null;
+                int start = buffer.position();
+                int length = (end > start && buffer.get(end - 1) == '\r' ? end - 1 : end) - start;
+                frame = TextCodec.decode(buffer.array(), start, length);
+                buffer.position(end + 1);
+            }
+            if (frame != null) return frame;
+            onUnknown.run();
+        }
+    }
+
+    /** Buffers up to the next '\n' and returns its index, or -1 at end of stream. */
+    private int nextLineEnd() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = buffer.position() + scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') return i;
+            }
+            scanned = buffer.remaining();
+            if (!fill(-1)) {
+                if (buffer.hasRemaining()) throw new EOFException("Connection closed mid-line");
+                return -1;
+            }
+        }
+    }
+
+    /** Reads more bytes, growing the buffer if a frame or line needs it. Returns false at end of stream. */
+    private boolean fill(int needed) throws IOException {
+        buffer.compact();
+        if (!buffer.hasRemaining() || buffer.capacity() < needed) {
+            int capacity = Math.max(buffer.capacity() * 2, needed);
+            if (capacity > maxFrameSize + BinaryCodec.HEADER_SIZE) {
+                capacity = maxFrameSize + BinaryCodec.HEADER_SIZE;
+                if (buffer.capacity() >= capacity) throw new ProtocolException("Frame too large");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (read > 0) buffer.position(buffer.position() + read);
+        buffer.flip();
+        return read > 0;
+    }
+}
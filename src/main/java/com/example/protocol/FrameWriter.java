@@ -0,0 +1,47 @@
+package com.example.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames to a blocking stream in either protocol. Frames are encoded into a reused
+ * buffer and only reach the stream on {@link #flush()}, so a reply made of many frames
+ * goes out in one write. Methods are synchronized, so several threads may share one writer.
+ */
+public class FrameWriter {
+    private final OutputStream out;
+    private final OutputBuffer buffer = new OutputBuffer();
+    private volatile boolean binary;
+
+    public FrameWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public synchronized void switchToBinary() {
+        binary = true;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** Buffers one frame. */
+    public synchronized void write(Frame frame) {
+        if (binary) {
+            BinaryCodec.encode(frame, buffer);
+        } else {
+            TextCodec.encode(frame, buffer);
+        }
+    }
+
+    /** Writes out everything buffered so far. */
+    public synchronized void flush() throws IOException {
+        if (buffer.isEmpty()) return;
+        buffer.writeTo(out);
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every command of the chat protocol. In the text protocol a command is its name followed
+ * by up to {@code fieldCount} '|'-separated fields, where the last field takes the rest of
+ * the line (so message text may contain '|'). In the binary protocol it is the one-byte code.
+ * Codes are part of the wire format: never renumber them, only append.
+ */
+public enum Opcode {
+    // ----- Handshake and authentication -----
+    HELLO(1, 1),
+    HELLO_OK(2, 1),
+    LOGIN(3, 2),
+    REGISTER(4, 3),
+    AUTH_OK(5, 1),
+    AUTH_FAIL(6, 1),
+    AUTH_BUSY(7, 1),
+    RESUME(8, 2),
+    RESUME_OK(9, 2),
+
+    // ----- Client requests -----
+    NEW_CHAT(10, 1),
+    LIST_USER_CONVERSATIONS(11, 0),
+    SEND_MESSAGE(12, 2),
+    GET_MESSAGES(13, 1),
+    GET_MESSAGES_PAGE(14, 3),
+    SEARCH_USERS(15, 1),
+    SEND_FILE(16, 3),
+    GET_FILE(17, 2),
+    GET_FILES(18, 2),
+    UPLOAD_BEGIN(19, 4),
+    UPLOAD_CHUNK(20, 3),
+    UPLOAD_END(21, 1),
+    DOWNLOAD_BEGIN(22, 4),
+    DOWNLOAD_ACK(23, 2),
+    SYNC(24, 2),
+
+    // ----- Server responses and pushes -----
+    CHAT_STARTED(40, 1),
+    CHAT_FAIL(41, 1),
+    MY_CONVO(42, 2),
+    NEW_MESSAGE(43, 2),
+    MESSAGE_HISTORY(44, 1),
+    HISTORY_ITEM(45, 4),
+    HISTORY_PAGE(46, 3),
+    USER_RESULT(47, 2),
+    NEW_FILE(48, 2),
+    FILE_LIST(49, 1),
+    FILE_DATA(50, 2),
+    MESSAGE_SAVED(51, 3),
+    ERROR(52, 1),
+    UPLOAD_READY(53, 4),
+    UPLOAD_ACK(54, 2),
+    UPLOAD_DONE(55, 2),
+    UPLOAD_FAIL(56, 2),
+    DOWNLOAD_READY(57, 2),
+    DOWNLOAD_CHUNK(58, 3),
+    DOWNLOAD_END(59, 2),
+    DOWNLOAD_FAIL(60, 2),
+    BATCH(61, 1),
+    SESSION(62, 2),
+    MESSAGE(63, 4),
+    SYNC_ITEM(64, 4),
+    SYNC_END(65, 3),
+    RESYNC(66, 2),
+    FILE_ITEM(67, 6);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+    private static final Map<String, Opcode> BY_NAME = new HashMap<>();
+    /** Opcodes grouped by the length of their name, for matching names in raw bytes. */
+    private static final Opcode[][] BY_NAME_LENGTH;
+
+    static {
+        List<List<Opcode>> byLength = new ArrayList<>();
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code & 0xFF] = opcode;
+            BY_NAME.put(opcode.name(), opcode);
+            while (byLength.size() <= opcode.nameBytes.length) byLength.add(new ArrayList<>());
+            byLength.get(opcode.nameBytes.length).add(opcode);
+        }
+        BY_NAME_LENGTH = new Opcode[byLength.size()][];
+        for (int i = 0; i < BY_NAME_LENGTH.length; i++) {
+            BY_NAME_LENGTH[i] = byLength.get(i).toArray(new Opcode[0]);
+        }
+    }
+
+    private final byte code;
+    private final int fieldCount;
+    private final byte[] nameBytes;
+
+    Opcode(int code, int fieldCount) {
+        this.code = (byte) code;
+        this.fieldCount = fieldCount;
+        this.nameBytes = name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /** Maximum number of fields after the command name in the text protocol. */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /** Returns the opcode for a binary code, or null if it is unknown. */
+    public static Opcode fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+
+    /** Returns the opcode for a text command name, or null if it is unknown. */
+    public static Opcode fromName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /** Same as {@link #fromName(String)}, but reads the name straight from a line's bytes. */
+    public static Opcode fromName(byte[] bytes, int offset, int length) {
+        if (length >= BY_NAME_LENGTH.length) return null;
+        for (Opcode opcode : BY_NAME_LENGTH[length]) {
+            if (Arrays.equals(opcode.nameBytes, 0, length, bytes, offset, offset + length)) return opcode;
+        }
+        return null;
+    }
+
+    /** The command name as ASCII bytes, for the text encoder. */
+    byte[] getNameBytes() {
+        return nameBytes;
+    }
+}
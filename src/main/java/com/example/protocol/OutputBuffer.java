@@ -0,0 +1,130 @@
+package com.example.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A growable byte buffer that frames are encoded into and that is reused from one flush to
+ * the next, so sending a frame does not allocate a buffer of its own. It shrinks back after
+ * an unusually large burst so one big file chunk does not pin memory for the connection's
+ * lifetime. Nothing is allocated until the first frame is encoded. Not thread-safe.
+ */
+public final class OutputBuffer {
+    private static final int INITIAL_CAPACITY = 8192;
+    private static final int RETAINED_CAPACITY = 1024 * 1024;
+
+    private ByteBuffer buffer;
+
+    /** Returns the underlying buffer with room for at least {@code bytes} more bytes. */
+    ByteBuffer ensure(int bytes) {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(Math.max(INITIAL_CAPACITY, bytes));
+        } else if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        return buffer;
+    }
+
+    void put(byte b) {
+        ensure(1).put(b);
+    }
+
+    void put(byte[] bytes) {
+        ensure(bytes.length).put(bytes);
+    }
+
+    /** Encodes the string as UTF-8 without an intermediate byte array; returns the byte count. */
+    int putUtf8(String s) {
+        ByteBuffer b = ensure(s.length() * 3);
+        int start = b.position();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b.put((byte) c);
+            } else if (c < 0x800) {
+                b.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                b.put((byte) '?');
+            } else {
+                b.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        return b.position() - start;
+    }
+
+    /** Writes a number as ASCII digits. */
+    void putDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            putUtf8(Long.toString(value));
+            return;
+        }
+        ByteBuffer b = ensure(20);
+        if (value < 0) {
+            b.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        int end = b.position() + digits;
+        for (int i = end - 1; i >= b.position(); i--) {
+            b.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        b.position(end);
+    }
+
+    public boolean isEmpty() {
+        return buffer == null || buffer.position() == 0;
+    }
+
+    public int size() {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    /** Writes everything buffered to the stream and empties the buffer; does not flush the stream. */
+    public void writeTo(OutputStream out) throws IOException {
+        if (isEmpty()) return;
+        out.write(buffer.array(), 0, buffer.position());
+        clear();
+    }
+
+    /** Moves everything buffered into a new exactly-sized buffer, ready for reading, and empties this one. */
+    public ByteBuffer take() {
+        if (isEmpty()) return ByteBuffer.allocate(0);
+        buffer.flip();
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+        clear();
+        return copy;
+    }
+
+    /**
+     * Like {@link #take()}, but hands over the buffer itself, flipped for reading, and carries
+     * on in {@code replacement} (one taken earlier and fully read), so nothing is copied. A
+     * replacement that is missing, smaller than a fresh buffer or past the retained size is
+     * not used, and a new buffer is allocated on the next write.
+     */
+    public ByteBuffer take(ByteBuffer replacement) {
+        ByteBuffer taken = buffer != null ? buffer.flip() : ByteBuffer.allocate(0);
+        boolean reusable = replacement != null && replacement.capacity() >= INITIAL_CAPACITY
+                && replacement.capacity() <= RETAINED_CAPACITY;
+        buffer = reusable ? replacement.clear() : null;
+        return taken;
+    }
+
+    public void clear() {
+        if (buffer == null) return;
+        if (buffer.capacity() > RETAINED_CAPACITY) {
+            buffer = null;
+        } else {
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.protocol;
+
+/**
+ * Thrown when a peer sends bytes that are not a valid frame. The connection cannot be
+ * resynchronised after this and should be closed.
+ */
+public class ProtocolException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The original line protocol: COMMAND|field|field..., one frame per line. Lines are
+ * tokenized straight from the received bytes and frames are encoded straight into an
+ * {@link OutputBuffer}, so neither direction builds an intermediate String for the line.
+ */
+public final class TextCodec {
+    private TextCodec() {
+    }
+
+    /**
+     * Parses the line in {@code bytes[offset, offset + length)}, without its line terminator.
+     * Returns null if the command is unknown.
+     */
+    public static Frame decode(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int bar = indexOf(bytes, offset, end);
+        Opcode opcode = Opcode.fromName(bytes, offset, (bar < 0 ? end : bar) - offset);
+        if (opcode == null) return null;
+        int max = opcode.getFieldCount();
+        Object[] fields = new Object[max];
+        int count = 0;
+        int start = bar + 1;
+        while (bar >= 0 && count < max) {
+            bar = count == max - 1 ? -1 : indexOf(bytes, start, end);
+            int fieldEnd = bar < 0 ? end : bar;
+            fields[count++] = new String(bytes, start, fieldEnd - start, StandardCharsets.UTF_8);
+            start = fieldEnd + 1;
+        }
+        return Frame.of(opcode, count == max ? fields : Arrays.copyOf(fields, count));
+    }
+
+    private static int indexOf(byte[] bytes, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (bytes[i] == '|') return i;
+        }
+        return -1;
+    }
+
+    /** Appends the frame as one line, including the trailing newline. */
+    public static void encode(Frame frame, OutputBuffer out) {
+        out.put(frame.getOpcode().getNameBytes());
+        for (int i = 0; i < frame.size(); i++) {
+            Object field = frame.field(i);
+            out.put((byte) '|');
+            if (field instanceof byte[]) {
+                out.put(Base64.getEncoder().encode((byte[]) field));
+            } else if (field instanceof Long) {
+                out.putDecimal((Long) field);
+            } else {
+                out.putUtf8((String) field);
+            }
+        }
+        out.put((byte) '\n');
+    }
+
+    /** Formats a frame as one line, without the trailing newline. */
+    public static String encode(Frame frame) {
+        StringBuilder line = new StringBuilder(64).append(frame.getOpcode().name());
+        for (int i = 0; i < frame.size(); i++) {
+            Object field = frame.field(i);
+            line.append('|');
+            if (field instanceof byte[]) {
+                line.append(Base64.getEncoder().encodeToString((byte[]) field));
+            } else {
+                line.append(field);
+            }
+        }
+        return line.toString();
+    }
+}
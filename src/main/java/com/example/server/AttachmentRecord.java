@@ -0,0 +1,26 @@
+package com.example.server;
+
+/**
+ * One file shared in a conversation, as listed to clients. The attachment ID is the ID of
+ * the file's message, so two files with the same name stay apart.
+ */
+public class AttachmentRecord {
+    private final String attachmentId;
+    private final long seq;
+    private final long size;
+    private final String senderName;
+    private final String fileName;
+
+    public AttachmentRecord(String attachmentId, long seq, long size, String senderName, String fileName) {
+        this.attachmentId = attachmentId;
+        this.seq = seq;
+        this.size = size;
+        this.senderName = senderName;
+        this.fileName = fileName;
+    }
+    public String getAttachmentId() { return attachmentId; }
+    public long getSeq() { return seq; }
+    public long getSize() { return size; }
+    public String getSenderName() { return senderName; }
+    public String getFileName() { return fileName; }
+}
@@ -0,0 +1,78 @@
+package com.example.server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Encrypted, content-addressed attachments on top of a {@link BlobStore}. A file's blob ID
+ * is the SHA-256 of its plaintext, so the same file shared many times is stored once.
+ */
+class AttachmentStore {
+    private final BlobStore blobs;
+
+    AttachmentStore(BlobStore blobs) {
+        this.blobs = blobs;
+    }
+
+    /** Stores the plaintext file unless identical content is already stored, and returns its blob ID. */
+    String store(Path plaintext) throws IOException {
+        String blobId = hash(plaintext);
+        if (!blobs.exists(blobId)) {
+            try (InputStream in = encrypted(new BufferedInputStream(Files.newInputStream(plaintext)))) {
+                blobs.write(blobId, in);
+            }
+        }
+        return blobId;
+    }
+
+    /** Same as {@link #store(Path)} for content already in memory (legacy SEND_FILE). */
+    String store(byte[] plaintext) throws IOException {
+        String blobId = HexFormat.of().formatHex(sha256().digest(plaintext));
+        if (!blobs.exists(blobId)) {
+            try (InputStream in = encrypted(new ByteArrayInputStream(plaintext))) {
+                blobs.write(blobId, in);
+            }
+        }
+        return blobId;
+    }
+
+    /** Opens the decrypted contents of an attachment. */
+    InputStream open(String blobId) throws IOException {
+        try {
+            return CryptoUtil.decryptingStream(new BufferedInputStream(blobs.read(blobId)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt attachment", e);
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static InputStream encrypted(InputStream plaintext) throws IOException {
+        try {
+            return CryptoUtil.encryptingInputStream(plaintext);
+        } catch (GeneralSecurityException e) {
+            plaintext.close();
+            throw new IOException("Could not encrypt attachment", e);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs password checks (BCrypt) on a pool sized to the cores, so a reconnect storm cannot
+ * take every CPU away from connected users. Checks complete asynchronously: the thread that
+ * read the LOGIN or REGISTER goes back to serving other connections straight away. At most
+ * {@code queueSize} checks wait for a worker, and a check that waited longer than
+ * {@code maxWaitMillis} for one is skipped; either way the attempt is turned away as
+ * {@link Outcome#BUSY} without hashing anything. Once a check has started it always runs to
+ * completion and reports its real outcome, so a registration is never half done.
+ */
+class AuthService {
+    /** ERROR means the check itself failed (the database, say), not the credentials. */
+    enum Outcome { OK, REJECTED, BUSY, ERROR }
+
+    private final MongoService mongoService;
+    private final ThreadPoolExecutor pool;
+    private final long maxWaitMillis;
+    private final long retryAfterMillis;
+
+    AuthService(MongoService mongoService, int threads, int queueSize, long maxWaitMillis, long retryAfterMillis) {
+        this.mongoService = mongoService;
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterMillis = retryAfterMillis;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "auth-worker");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    CompletableFuture<Outcome> login(String email, String password) {
+        return run(() -> mongoService.loginUser(email, password));
+    }
+
+    CompletableFuture<Outcome> register(String fullName, String email, String password) {
+        return run(() -> mongoService.registerUser(email, password, fullName));
+    }
+
+    /**
+     * How long a client turned away as busy should wait before retrying. Jittered between
+     * one and two times the configured delay so the retries do not arrive together again.
+     */
+    long retryAfterMillis() {
+        return retryAfterMillis + ThreadLocalRandom.current().nextLong(retryAfterMillis + 1);
+    }
+
+    int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    private CompletableFuture<Outcome> run(Callable<Boolean> check) {
+        CompletableFuture<Outcome> result = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                if (System.nanoTime() - queuedAt > TimeUnit.MILLISECONDS.toNanos(maxWaitMillis)) {
+                    result.complete(Outcome.BUSY);
+                    return;
+                }
+                try {
+                    result.complete(check.call() ? Outcome.OK : Outcome.REJECTED);
+                } catch (Exception e) {
+                    System.err.println("Authentication check failed: " + e);
+                    result.complete(Outcome.ERROR);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.complete(Outcome.BUSY);
+        }
+        return result;
+    }
+
+    void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.server;
+
+import com.mongodb.client.MongoDatabase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Storage for attachment bytes, addressed by blob ID. Blobs are immutable: writing an ID
+ * that already exists leaves the stored blob alone. Selected with CHAT_BLOB_STORE
+ * ("local" or "gridfs").
+ */
+public interface BlobStore {
+    boolean exists(String blobId) throws IOException;
+
+    /** Streams {@code content} into the store under {@code blobId}. */
+    void write(String blobId, InputStream content) throws IOException;
+
+    InputStream read(String blobId) throws IOException;
+
+    String getName();
+
+    /** The store named by CHAT_BLOB_STORE; local blobs go under {@code dataDir}/attachments. */
+    static BlobStore fromConfig(ServerConfig config, Path dataDir, MongoDatabase database) throws IOException {
+        if ("gridfs".equalsIgnoreCase(config.getString("CHAT_BLOB_STORE", "local"))) {
+            return new GridFsBlobStore(database);
+        }
+        return new LocalBlobStore(dataDir.resolve("attachments"));
+    }
+}
@@ -1,312 +1,185 @@
 package com.example.server;
 
+import com.example.protocol.Frame;
+
 import java.io.*;
-import java.net.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
-    private ServerSocket serverSocket;
-    private final List<ClientHandler> clients;
+    private final OnlineUserRegistry onlineUsers = new OnlineUserRegistry();
+    private final AtomicInteger connectionCount = new AtomicInteger();
     private final MongoService mongoService;
+    private final AuthService authService;
+    private final SessionTokens sessionTokens;
+    private final int resumeReplayLimit;
+    private final FileTransferService fileTransfers;
+    private final ConnectionEngine engine;
+    private final boolean ackAfterPersist;
+    private final OutboundPolicy outboundPolicy;
+    private final Metrics metrics = new Metrics();
 
     public ChatServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        clients = Collections.synchronizedList(new ArrayList<>());
-        mongoService = new MongoService();
-        System.out.println("Server started on port " + port);
+        ServerConfig config = ServerConfig.load();
+        mongoService = new MongoService(config, metrics);
+        // Flush queued message writes when the server is stopped.
+        Runtime.getRuntime().addShutdownHook(new Thread(mongoService::close));
+        int cores = Runtime.getRuntime().availableProcessors();
+        authService = new AuthService(mongoService,
+                config.getInt("CHAT_AUTH_THREADS", cores),
+                config.getInt("CHAT_AUTH_QUEUE_SIZE", cores * 32),
+                config.getLong("CHAT_AUTH_MAX_WAIT_MS", 5000),
+                config.getLong("CHAT_AUTH_RETRY_AFTER_MS", 1000));
+        sessionTokens = new SessionTokens(config.getString("CHAT_SESSION_SECRET", null),
+                config.getLong("CHAT_SESSION_TTL_MS", 24L * 60 * 60 * 1000));
+        resumeReplayLimit = config.getInt("CHAT_RESUME_REPLAY_LIMIT", 1000);
+        outboundPolicy = OutboundPolicy.fromConfig(config);
+        ackAfterPersist = !"before_persist".equalsIgnoreCase(config.getString("CHAT_PERSIST_ACK", "after_persist"));
+        MessageMigration migration = new MessageMigration(mongoService.getDatabase());
+        migration.run();
+        migration.assignSequenceNumbers();
+        Path dataDir = Path.of(config.getString("CHAT_DATA_DIR", "data"));
+        BlobStore blobs = BlobStore.fromConfig(config, dataDir, mongoService.getDatabase());
+        AttachmentStore attachments = new AttachmentStore(blobs);
+        migration.migrateInlineFiles(attachments);
+        fileTransfers = new FileTransferService(dataDir, attachments, config.getLong("CHAT_MAX_UPLOAD_BYTES", 1L << 30));
+        engine = createEngine(port, config);
+        registerMetrics(config);
+        System.out.println("Server started on port " + port + " using the " + engine.getName() + " engine");
+    }
+
+    /** Publishes metrics over JMX, and over HTTP at /metrics when CHAT_METRICS_PORT is set. */
+    private void registerMetrics(ServerConfig config) throws IOException {
+        metrics.registerGauge("chat_connections", connectionCount::get);
+        metrics.registerGauge("chat_online_users", onlineUsers::getOnlineUserCount);
+        metrics.registerGauge("chat_auth_queue_depth", authService::getQueueDepth);
+        metrics.registerGauge("chat_slow_client_dropped_total", outboundPolicy::getDroppedCount);
+        metrics.registerGauge("chat_slow_client_coalesced_total", outboundPolicy::getCoalescedCount);
+        metrics.registerGauge("chat_slow_client_disconnected_total", outboundPolicy::getDisconnectedCount);
+        MetricsMBean.register(metrics);
+        int metricsPort = config.getInt("CHAT_METRICS_PORT", 0);
+        if (metricsPort > 0) {
+            new MetricsEndpoint(metricsPort, metrics);
+            System.out.println("Metrics available at http://localhost:" + metricsPort + "/metrics");
+        }
+    }
+
+    private ConnectionEngine createEngine(int port, ServerConfig config) throws IOException {
+        String engineName = config.getString("CHAT_ENGINE", "threaded");
+        int maxFrameBytes = config.getInt("CHAT_MAX_FRAME_BYTES",
+                config.getInt("CHAT_MAX_LINE_BYTES", 64 * 1024 * 1024));
+        if ("nio".equalsIgnoreCase(engineName)) {
+            int workers = config.getInt("CHAT_NIO_WORKERS", Runtime.getRuntime().availableProcessors() * 8);
+            return new NioConnectionEngine(port, this, workers, maxFrameBytes);
+        }
+        return new ThreadPerConnectionEngine(port, this, maxFrameBytes);
     }
 
     public MongoService getMongoService() {
         return mongoService;
     }
 
-    public void start() {
-        while (true) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(clientSocket, this);
-                clients.add(handler);
-                new Thread(handler).start();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    public ClientHandler getClientByUsername(String username) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client.getUsername().equalsIgnoreCase(username)) {
-                    return client;
-                }
-            }
-        }
-        return null;
+    AuthService getAuthService() {
+        return authService;
     }
 
-    public void removeClient(ClientHandler clientHandler) {
-        clients.remove(clientHandler);
-        System.out.println("Client disconnected. Current client count: " + clients.size());
+    SessionTokens getSessionTokens() {
+        return sessionTokens;
     }
 
-    public static void main(String[] args) {
-        try {
-            ChatServer server = new ChatServer(12345);
-            server.start();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    OutboundPolicy getOutboundPolicy() {
+        return outboundPolicy;
     }
-}
 
-class ClientHandler implements Runnable {
-    private final Socket socket;
-    private final ChatServer server;
-    private PrintWriter out;
-    private BufferedReader in;
-    private String username;
-    private String fullName;
-
-    public ClientHandler(Socket socket, ChatServer server) {
-        this.socket = socket;
-        this.server = server;
+    Metrics getMetrics() {
+        return metrics;
     }
 
-    @Override
-    public void run() {
-        try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            if (!handleAuth()) {
-                closeConnections();
-                return;
-            }
-            String message;
-            while ((message = in.readLine()) != null) {
-                handleClientMessage(message);
-            }
-        } catch (IOException e) {
-            System.err.println("Error: Connection issue with client " + username);
-        } finally {
-            server.removeClient(this);
-            closeConnections();
-        }
+    /** Most messages replayed to a resuming client before it is told to reload instead. */
+    int getResumeReplayLimit() {
+        return resumeReplayLimit;
     }
 
-    private boolean handleAuth() throws IOException {
-        String line = in.readLine();
-        if (line == null) return false;
-        String[] parts = line.split("\\|");
-        if (parts.length < 3) {
-            out.println("AUTH_FAIL|Missing parts");
-            return false;
-        }
-        String command = parts[0].toUpperCase();
-        if ("REGISTER".equals(command)) {
-            if (parts.length != 4) {
-                out.println("AUTH_FAIL|Incorrect registration format");
-                return false;
-            }
-            return handleRegister(parts[1], parts[2], parts[3]);
-        } else if ("LOGIN".equals(command)) {
-            if (parts.length != 3) {
-                out.println("AUTH_FAIL|Incorrect login format");
-                return false;
-            }
-            return handleLogin(parts[1], parts[2]);
-        } else {
-            out.println("AUTH_FAIL|Unknown command");
-            return false;
-        }
+    FileTransferService getFileTransfers() {
+        return fileTransfers;
     }
 
-    private boolean handleRegister(String fullNameInput, String email, String password) {
-        email = email.toLowerCase().trim();
-        if (server.getMongoService().registerUser(email, password, fullNameInput)) {
-            this.username = email;
-            this.fullName = fullNameInput;
-            out.println("AUTH_OK|" + this.fullName);
-            return true;
-        } else {
-            out.println("AUTH_FAIL|Username exists");
-            return false;
-        }
+    /** Whether senders are acknowledged only after their message is stored (CHAT_PERSIST_ACK). */
+    boolean isAckAfterPersist() {
+        return ackAfterPersist;
     }
 
-    private boolean handleLogin(String emailInput, String passwordInput) {
-        String email = emailInput.toLowerCase().trim();
-        if (server.getMongoService().loginUser(email, passwordInput)) {
-            this.username = email;
-            this.fullName = server.getMongoService().getFullName(email);
-            out.println("AUTH_OK|" + this.fullName);
-            return true;
-        } else {
-            out.println("AUTH_FAIL|Invalid credentials");
-            return false;
-        }
-    }
-
-    private void handleClientMessage(String message) {
-        String[] parts = message.split("\\|", 4);
-        String command = parts[0];
-        switch (command) {
-            case "NEW_CHAT":
-                handleNewChat(parts);
-                break;
-            case "LIST_USER_CONVERSATIONS":
-                handleListConversations();
-                break;
-            case "SEND_MESSAGE":
-                handleSendMessage(parts);
-                break;
-            case "GET_MESSAGES":
-                handleGetMessages(parts);
-                break;
-            case "SEARCH_USERS":
-                handleSearchUsers(parts);
-                break;
-            case "SEND_FILE":
-                handleSendFile(parts);
-                break;
-            case "GET_FILE":
-                handleGetFile(parts);
-                break;
-            case "GET_FILES":
-                handleGetFiles(parts);
-                break;
-            default:
-                break;
-        }
-    }
-
-    private void handleNewChat(String[] parts) {
-        if (parts.length < 2) return;
-        String recipientEmail = parts[1].toLowerCase().trim();
-        if (!server.getMongoService().userExists(recipientEmail)) {
-            out.println("CHAT_FAIL|UserNotFound");
-            return;
-        }
-        String conversationId = server.getMongoService().createOrGetConversation(username, recipientEmail);
-        String myFullName = server.getMongoService().getFullName(username);
-        String theirFullName = server.getMongoService().getFullName(recipientEmail);
-        String myDisplayName = "Conversation with " + (theirFullName != null ? theirFullName : recipientEmail);
-        String theirDisplayName = "Conversation with " + (myFullName != null ? myFullName : username);
-        server.getMongoService().addConversationToUser(username, conversationId, myDisplayName);
-        server.getMongoService().addConversationToUser(recipientEmail, conversationId, theirDisplayName);
-        out.println("CHAT_STARTED|" + conversationId);
-        ClientHandler recipientHandler = server.getClientByUsername(recipientEmail);
-        if (recipientHandler != null) {
-            recipientHandler.sendMessage("CHAT_STARTED|" + conversationId);
-        }
-    }
-
-    private void handleListConversations() {
-        List<ConvRef> userConvos = server.getMongoService().getUserConversations(username);
-        for (ConvRef convo : userConvos) {
-            out.println("MY_CONVO|" + convo.getConversationId() + "|" + convo.getDisplayName());
-        }
-    }
-
-    private void handleSendMessage(String[] parts) {
-        if (parts.length < 3) return;
-        String conversationId = parts[1];
-        String msgContent = parts[2];
+    public void start() {
         try {
-            String encrypted = CryptoUtil.encrypt(msgContent);
-            server.getMongoService().saveMessage(conversationId, username, encrypted);
-            String recipientEmail = server.getMongoService().getRecipientFromConversation(conversationId, username);
-            ClientHandler recipientHandler = server.getClientByUsername(recipientEmail);
-            if (recipientHandler != null) {
-                recipientHandler.sendMessage("NEW_MESSAGE|" + fullName + "|" + msgContent);
-            }
-        } catch (Exception ex) {
-            out.println("ERROR|Encryption failed on server side");
+            engine.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    private void handleGetMessages(String[] parts) {
-        if (parts.length < 2) return;
-        String conversationId = parts[1];
-        // Send complete conversation history (file messages are included once)
-        for (String msg : server.getMongoService().getMessages(conversationId, username)) {
-            out.println("MESSAGE_HISTORY|" + msg);
-        }
+    ClientHandler newClientHandler(ClientTransport transport) {
+        connectionCount.incrementAndGet();
+        return new ClientHandler(transport, this);
     }
 
-    private void handleSearchUsers(String[] parts) {
-        if (parts.length < 2) return;
-        String prefix = parts[1].toLowerCase();
-        for (UserRecord r : server.getMongoService().searchUsersByPrefix(prefix)) {
-            out.println("USER_RESULT|" + r.getEmail() + "|" + r.getFullName());
-        }
+    /** Called once a handler has authenticated, making it reachable by email. */
+    void registerClient(ClientHandler clientHandler) {
+        onlineUsers.register(clientHandler.getUsername(), clientHandler);
     }
 
-    // ----- File Sharing Commands -----
-    private void handleSendFile(String[] parts) {
-        if (parts.length < 4) return;
-        String conversationId = parts[1];
-        String fileName = parts[2];
-        String base64Data = parts[3];
-        try {
-            String encryptedFileData = CryptoUtil.encrypt(base64Data);
-            // Save file message with summary text: "<SenderFullName> shared a file: <fileName>"
-            server.getMongoService().saveFileMessage(conversationId, username, fileName, encryptedFileData, fullName);
-            // Notify the recipient
-            String recipientEmail = server.getMongoService().getRecipientFromConversation(conversationId, username);
-            ClientHandler recipientHandler = server.getClientByUsername(recipientEmail);
-            if (recipientHandler != null) {
-                recipientHandler.sendMessage("NEW_FILE|" + fullName + "|" + fileName);
-            }
-            // No duplicate notification to sender – the sender will see the stored message when reloading.
-        } catch (Exception ex) {
-            out.println("ERROR|File encryption failed");
+    /**
+     * Delivers a frame to every session the user has open.
+     * Returns the number of sessions reached, 0 if the user is offline.
+     */
+    public int sendToUser(String email, Frame frame) {
+        if (email == null) return 0;
+        int delivered = 0;
+        for (ClientHandler session : onlineUsers.getSessions(email)) {
+            session.sendMessage(frame);
+            delivered++;
         }
+        return delivered;
     }
 
-    private void handleGetFile(String[] parts) {
-        if (parts.length < 3) return;
-        String conversationId = parts[1];
-        String requestedFile = parts[2];
-        String encryptedFileData = server.getMongoService().fetchFileBase64(conversationId, requestedFile);
-        if (encryptedFileData == null) {
-            out.println("FILE_DATA|" + requestedFile + "|NOT_FOUND");
-        } else {
-            try {
-                // Decrypt the stored file data before sending to the client.
-                String plainBase64 = CryptoUtil.decrypt(encryptedFileData);
-                out.println("FILE_DATA|" + requestedFile + "|" + plainBase64);
-            } catch (Exception e) {
-                e.printStackTrace();
-                out.println("FILE_DATA|" + requestedFile + "|ERROR");
-            }
+    /** Tells every session of the recipient about a shared file, in the format each one negotiated. */
+    public int deliverFile(String email, String conversationId, PendingMessage message, String senderName,
+                           String fileName, long size) {
+        if (email == null) return 0;
+        int delivered = 0;
+        for (ClientHandler session : onlineUsers.getSessions(email)) {
+            session.sendFileNotice(conversationId, message, senderName, fileName, size);
+            delivered++;
         }
+        return delivered;
     }
 
-
-    // New command to get the list of files for a conversation.
-    private void handleGetFiles(String[] parts) {
-        if (parts.length < 2) return;
-        String conversationId = parts[1];
-        for (String file : server.getMongoService().getFileNames(conversationId)) {
-            out.println("FILE_LIST|" + file);
+    /** Pushes a new chat message to every session of the recipient, in the format each one negotiated. */
+    public int deliverChatMessage(String email, String conversationId, PendingMessage message, String senderName, String text) {
+        if (email == null) return 0;
+        int delivered = 0;
+        for (ClientHandler session : onlineUsers.getSessions(email)) {
+            session.sendChatMessage(conversationId, message, senderName, text);
+            delivered++;
         }
+        return delivered;
     }
 
-    public void sendMessage(String msg) {
-        out.println(msg);
+    void unregisterClient(ClientHandler clientHandler) {
+        if (clientHandler.getUsername() != null) {
+            onlineUsers.unregister(clientHandler.getUsername(), clientHandler);
+        }
     }
 
-    public String getUsername() {
-        return username;
+    public void removeClient(ClientHandler clientHandler) {
+        unregisterClient(clientHandler);
+        int remaining = connectionCount.decrementAndGet();
+        System.out.println("Client disconnected. Current client count: " + remaining);
     }
 
-    private void closeConnections() {
+    public static void main(String[] args) {
         try {
-            if (in != null) in.close();
-            if (out != null) out.close();
-            if (socket != null && !socket.isClosed()) socket.close();
+            ChatServer server = new ChatServer(12345);
+            server.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,761 @@
+package com.example.server;
+
+import com.example.protocol.Features;
+import com.example.protocol.Frame;
+import com.example.protocol.Opcode;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+class ClientHandler {
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 500;
+    /** Commands a client may pipeline behind LOGIN or REGISTER before it is answered. */
+    private static final int MAX_DEFERRED_FRAMES = 64;
+
+    private final ClientTransport transport;
+    private final ChatServer server;
+    private String username;
+    private String fullName;
+    private volatile boolean authenticated;
+    /**
+     * Set while a LOGIN or REGISTER is being checked on the auth pool, and until the frames
+     * that arrived meanwhile have been handled; guarded by {@link #deferred}.
+     */
+    private boolean authPending;
+    /** Frames received while authPending, handled in order once the check is done. */
+    private final ArrayDeque<Frame> deferred = new ArrayDeque<>();
+    private volatile boolean disconnected;
+    private boolean batchReplies;
+    private boolean resumable;
+    /** Set by RESUME: the last message the client saw, replayed from once the session is back. */
+    private String resumeAfter;
+    private final Map<String, DownloadSession> downloads = new HashMap<>();
+
+    public ClientHandler(ClientTransport transport, ChatServer server) {
+        this.transport = transport;
+        this.server = server;
+    }
+
+    /**
+     * Handles one frame from the client. The first frame must be LOGIN or REGISTER, optionally
+     * preceded by HELLO; the connection is closed if authentication fails. When the server is
+     * too busy to check the password it answers AUTH_BUSY and the client may try again. The
+     * check finishes on the auth pool; frames that arrive meanwhile are held and handled in
+     * order afterwards, so a client may pipeline commands behind its LOGIN.
+     */
+    void onFrame(Frame frame) {
+        synchronized (deferred) {
+            if (authPending) {
+                if (deferred.size() < MAX_DEFERRED_FRAMES) {
+                    deferred.add(frame);
+                } else {
+                    transport.send(Frame.of(Opcode.AUTH_FAIL, "Too many commands before login"));
+                    transport.close();
+                }
+                return;
+            }
+        }
+        handleFrame(frame);
+    }
+
+    private void handleFrame(Frame frame) {
+        long start = System.nanoTime();
+        if (!authenticated && frame.getOpcode() != Opcode.HELLO) {
+            startAuth(frame, start);
+            return;
+        }
+        try {
+            if (authenticated) {
+                handleClientMessage(frame);
+            } else {
+                handleHello(frame);
+            }
+        } finally {
+            // Timed per command, so each handler gets its own latency distribution.
+            server.getMetrics().recordCommand(frame.getOpcode(), start);
+        }
+    }
+
+    private void startAuth(Frame frame, long start) {
+        synchronized (deferred) {
+            authPending = true;
+        }
+        handleAuth(frame).whenComplete((outcome, error) -> {
+            boolean open = false;
+            try {
+                open = finishAuth(error == null ? outcome : AuthService.Outcome.ERROR);
+            } catch (RuntimeException e) {
+                System.err.println("Could not complete authentication for " + username + ": " + e);
+                transport.close();
+            } finally {
+                server.getMetrics().recordCommand(frame.getOpcode(), start);
+            }
+            handleDeferred(open);
+        });
+    }
+
+    /**
+     * Handles the frames held while authenticating, then lets new ones through. Runs on the
+     * thread that finished the check; new frames keep being held until it is done, so they
+     * are still handled one at a time and in order.
+     */
+    private void handleDeferred(boolean open) {
+        while (true) {
+            Frame next;
+            synchronized (deferred) {
+                next = open ? deferred.poll() : null;
+                if (next == null) {
+                    deferred.clear();
+                    authPending = false;
+                    return;
+                }
+            }
+            handleFrame(next);
+            // A LOGIN retried after AUTH_BUSY starts another check, which carries on from here.
+            if (!authenticated && next.getOpcode() != Opcode.HELLO) return;
+        }
+    }
+
+    /**
+     * Runs once the check is done and answers it. Returns false if the connection was closed.
+     * The client may send commands as soon as it reads AUTH_OK, so it is marked authenticated
+     * before the reply is queued, and registered for pushes right after, which keeps AUTH_OK
+     * the first frame it receives.
+     */
+    private boolean finishAuth(AuthService.Outcome outcome) {
+        if (outcome == AuthService.Outcome.OK) {
+            authenticated = true;
+            if (resumeAfter == null) transport.send(Frame.of(Opcode.AUTH_OK, fullName));
+            server.registerClient(this);
+            if (disconnected) {
+                // The socket dropped while we were authenticating.
+                server.unregisterClient(this);
+            }
+            // Registered first, so nothing falls between the replay and live delivery.
+            if (resumeAfter != null) replayMissedMessages();
+            if (resumable) {
+                transport.send(Frame.of(Opcode.SESSION, server.getSessionTokens().issue(username),
+                        server.getMongoService().getCurrentMessagePosition()));
+            }
+        } else if (outcome == AuthService.Outcome.BUSY) {
+            transport.send(Frame.of(Opcode.AUTH_BUSY, server.getAuthService().retryAfterMillis()));
+        } else {
+            if (outcome == AuthService.Outcome.ERROR) {
+                transport.send(Frame.of(Opcode.AUTH_FAIL, "Server error, please try again later"));
+            }
+            transport.close();
+            return false;
+        }
+        return true;
+    }
+
+    /** Unknown commands are ignored once logged in, but fail authentication before that. */
+    void onUnknownCommand() {
+        server.getMetrics().unknownCommands.increment();
+        if (!authenticated) {
+            transport.send(Frame.of(Opcode.AUTH_FAIL, "Unknown command"));
+            transport.close();
+        }
+    }
+
+    void onDisconnect() {
+        disconnected = true;
+        server.removeClient(this);
+        synchronized (downloads) {
+            downloads.values().forEach(DownloadSession::close);
+            downloads.clear();
+        }
+    }
+
+    /**
+     * HELLO|features — a comma-separated list of what the client supports. The server answers
+     * HELLO_OK with the features it accepted; if that includes BIN1, both sides use the binary
+     * protocol from the next frame on. Clients that never send HELLO stay on the text protocol.
+     */
+    private void handleHello(Frame frame) {
+        Set<String> accepted = Features.accept(frame.size() > 0 ? frame.getString(0) : "",
+                Features.BINARY, Features.BATCH, Features.RESUME);
+        batchReplies = accepted.contains(Features.BATCH);
+        resumable = accepted.contains(Features.RESUME);
+        Frame reply = Frame.of(Opcode.HELLO_OK, Features.join(accepted));
+        if (accepted.contains(Features.BINARY)) {
+            transport.upgradeToBinary(reply);
+        } else {
+            transport.send(reply);
+        }
+    }
+
+    /**
+     * Sends a reply made of several frames in one piece. Clients that negotiated BATCH get a
+     * BATCH|count header first, so they can apply the whole reply in one go.
+     */
+    private void sendReply(List<Frame> frames) {
+        if (batchReplies) {
+            List<Frame> batch = new ArrayList<>(frames.size() + 1);
+            batch.add(Frame.of(Opcode.BATCH, frames.size()));
+            batch.addAll(frames);
+            frames = batch;
+        }
+        transport.sendAll(frames);
+    }
+
+    private CompletableFuture<AuthService.Outcome> handleAuth(Frame frame) {
+        Opcode command = frame.getOpcode();
+        if (command == Opcode.REGISTER) {
+            if (frame.size() != 3) {
+                transport.send(Frame.of(Opcode.AUTH_FAIL, "Incorrect registration format"));
+                return CompletableFuture.completedFuture(AuthService.Outcome.REJECTED);
+            }
+            return handleRegister(frame.getString(0), frame.getString(1), frame.getString(2));
+        } else if (command == Opcode.LOGIN) {
+            if (frame.size() != 2) {
+                transport.send(Frame.of(Opcode.AUTH_FAIL, "Incorrect login format"));
+                return CompletableFuture.completedFuture(AuthService.Outcome.REJECTED);
+            }
+            return handleLogin(frame.getString(0), frame.getString(1));
+        } else if (command == Opcode.RESUME) {
+            return CompletableFuture.completedFuture(handleResume(frame));
+        } else {
+            transport.send(Frame.of(Opcode.AUTH_FAIL, "Unknown command"));
+            return CompletableFuture.completedFuture(AuthService.Outcome.REJECTED);
+        }
+    }
+
+    private CompletableFuture<AuthService.Outcome> handleRegister(String fullNameInput, String emailInput,
+                                                                  String password) {
+        String email = emailInput.toLowerCase().trim();
+        return server.getAuthService().register(fullNameInput, email, password).thenApply(outcome -> {
+            if (outcome == AuthService.Outcome.OK) {
+                this.username = email;
+                this.fullName = fullNameInput;
+            } else if (outcome == AuthService.Outcome.REJECTED) {
+                transport.send(Frame.of(Opcode.AUTH_FAIL, "Username exists"));
+            }
+            return outcome;
+        });
+    }
+
+    private CompletableFuture<AuthService.Outcome> handleLogin(String emailInput, String passwordInput) {
+        String email = emailInput.toLowerCase().trim();
+        return server.getAuthService().login(email, passwordInput).thenApply(outcome -> {
+            if (outcome == AuthService.Outcome.OK) {
+                this.username = email;
+                this.fullName = server.getMongoService().getFullName(email);
+            } else if (outcome == AuthService.Outcome.REJECTED) {
+                transport.send(Frame.of(Opcode.AUTH_FAIL, "Invalid credentials"));
+            }
+            return outcome;
+        });
+    }
+
+    /**
+     * RESUME|token|lastMessageId — restores a session from the token issued in SESSION, with no
+     * password check. The reply is RESUME_OK|complete|fullName followed by a MESSAGE for every
+     * message the client missed after lastMessageId. complete is 0 when there were too many to
+     * replay, and the client should reload instead.
+     */
+    private AuthService.Outcome handleResume(Frame frame) {
+        String email = frame.size() == 2 ? server.getSessionTokens().verify(frame.getString(0)) : null;
+        if (email == null) {
+            transport.send(Frame.of(Opcode.AUTH_FAIL, "Session expired"));
+            return AuthService.Outcome.REJECTED;
+        }
+        this.username = email;
+        this.fullName = server.getMongoService().getFullName(email);
+        this.resumable = true;
+        this.resumeAfter = frame.getString(1);
+        return AuthService.Outcome.OK;
+    }
+
+    private void replayMissedMessages() {
+        List<String> conversationIds = new ArrayList<>();
+        for (ConvRef convo : server.getMongoService().getUserConversations(username)) {
+            conversationIds.add(convo.getConversationId());
+        }
+        List<MessageRecord> missed = server.getMongoService().getMessagesSince(conversationIds, resumeAfter,
+                username, server.getResumeReplayLimit());
+        resumeAfter = null;
+        transport.send(Frame.of(Opcode.RESUME_OK, missed != null ? 1 : 0, fullName));
+        if (missed == null) return;
+        List<Frame> reply = new ArrayList<>(missed.size());
+        for (MessageRecord msg : missed) {
+            reply.add(Frame.of(Opcode.MESSAGE, msg.getConversationId(), msg.getMessageId(), msg.getSeq(), msg.getText()));
+        }
+        sendReply(reply);
+    }
+
+    private void handleClientMessage(Frame frame) {
+        switch (frame.getOpcode()) {
+            case NEW_CHAT:
+                handleNewChat(frame);
+                break;
+            case LIST_USER_CONVERSATIONS:
+                handleListConversations();
+                break;
+            case SEND_MESSAGE:
+                handleSendMessage(frame);
+                break;
+            case GET_MESSAGES:
+                handleGetMessages(frame);
+                break;
+            case GET_MESSAGES_PAGE:
+                handleGetMessagesPage(frame);
+                break;
+            case SEARCH_USERS:
+                handleSearchUsers(frame);
+                break;
+            case SEND_FILE:
+                handleSendFile(frame);
+                break;
+            case GET_FILE:
+                handleGetFile(frame);
+                break;
+            case GET_FILES:
+                handleGetFiles(frame);
+                break;
+            case UPLOAD_BEGIN:
+                handleUploadBegin(frame);
+                break;
+            case UPLOAD_CHUNK:
+                handleUploadChunk(frame);
+                break;
+            case UPLOAD_END:
+                handleUploadEnd(frame);
+                break;
+            case DOWNLOAD_BEGIN:
+                handleDownloadBegin(frame);
+                break;
+            case DOWNLOAD_ACK:
+                handleDownloadAck(frame);
+                break;
+            case SYNC:
+                handleSync(frame);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void handleNewChat(Frame frame) {
+        if (frame.size() < 1) return;
+        String recipientEmail = frame.getString(0).toLowerCase().trim();
+        if (!server.getMongoService().userExists(recipientEmail)) {
+            transport.send(Frame.of(Opcode.CHAT_FAIL, "UserNotFound"));
+            return;
+        }
+        String conversationId = server.getMongoService().createOrGetConversation(username, recipientEmail);
+        String myFullName = fullName;
+        String theirFullName = server.getMongoService().getFullName(recipientEmail);
+        String myDisplayName = "Conversation with " + (theirFullName != null ? theirFullName : recipientEmail);
+        String theirDisplayName = "Conversation with " + (myFullName != null ? myFullName : username);
+        server.getMongoService().addConversationToUser(username, conversationId, myDisplayName);
+        server.getMongoService().addConversationToUser(recipientEmail, conversationId, theirDisplayName);
+        transport.send(Frame.of(Opcode.CHAT_STARTED, conversationId));
+        server.sendToUser(recipientEmail, Frame.of(Opcode.CHAT_STARTED, conversationId));
+    }
+
+    private void handleListConversations() {
+        List<ConvRef> userConvos = server.getMongoService().getUserConversations(username);
+        List<Frame> reply = new ArrayList<>(userConvos.size());
+        for (ConvRef convo : userConvos) {
+            reply.add(Frame.of(Opcode.MY_CONVO, convo.getConversationId(), convo.getDisplayName()));
+        }
+        sendReply(reply);
+    }
+
+    private void handleSendMessage(Frame frame) {
+        if (frame.size() < 2) return;
+        String conversationId = frame.getString(0);
+        String msgContent = frame.getString(1);
+        try {
+            long encryptStart = System.nanoTime();
+            String encrypted = CryptoUtil.encrypt(msgContent);
+            server.getMetrics().encryption.recordSince(encryptStart);
+            PendingMessage saved = server.getMongoService().saveMessage(conversationId, username, encrypted);
+            if (saved.getPersisted().isCompletedExceptionally()) {
+                // Not even queued (the write buffer is full or closing), so there is nothing to deliver.
+                transport.send(Frame.of(Opcode.ERROR, "Message could not be saved"));
+                return;
+            }
+            // Deliver right away; the write is batched in the background.
+            String recipientEmail = server.getMongoService().getRecipientFromConversation(conversationId, username);
+            server.deliverChatMessage(recipientEmail, conversationId, saved, fullName, msgContent);
+            acknowledgeSaved(conversationId, saved);
+        } catch (Exception ex) {
+            transport.send(Frame.of(Opcode.ERROR, "Encryption failed on server side"));
+        }
+    }
+
+    /**
+     * Sends MESSAGE_SAVED|conversationId|messageId|seq to the sender, either as soon as the message
+     * is queued or once it is stored, depending on CHAT_PERSIST_ACK. A failed write is reported
+     * as an ERROR in both modes.
+     */
+    private void acknowledgeSaved(String conversationId, PendingMessage saved) {
+        Frame ack = Frame.of(Opcode.MESSAGE_SAVED, conversationId, saved.getMessageId(), saved.getSeq());
+        if (!server.isAckAfterPersist()) {
+            transport.send(ack);
+        }
+        saved.getPersisted().whenComplete((ignored, error) -> {
+            if (error != null) {
+                transport.send(Frame.of(Opcode.ERROR, "Message could not be saved"));
+            } else if (server.isAckAfterPersist()) {
+                transport.send(ack);
+            }
+        });
+    }
+
+    private void handleGetMessages(Frame frame) {
+        if (frame.size() < 1) return;
+        String conversationId = frame.getString(0);
+        // Send complete conversation history (file messages are included once)
+        List<String> history = server.getMongoService().getMessages(conversationId, username);
+        List<Frame> reply = new ArrayList<>(history.size());
+        for (String msg : history) {
+            reply.add(Frame.of(Opcode.MESSAGE_HISTORY, msg));
+        }
+        sendReply(reply);
+    }
+
+    /**
+     * GET_MESSAGES_PAGE|conversationId|limit|beforeCursor — the latest messages before the
+     * cursor, which is a nextCursor from HISTORY_PAGE or a message ID (omit it for the newest
+     * page). Replies with HISTORY_ITEM|conversationId|messageId|seq|text
+     * lines, oldest first, then HISTORY_PAGE|conversationId|count|nextCursor, where an empty
+     * cursor means the start of the conversation has been reached.
+     */
+    private void handleGetMessagesPage(Frame frame) {
+        if (frame.size() < 1) return;
+        String conversationId = frame.getString(0);
+        int limit = DEFAULT_PAGE_SIZE;
+        if (frame.size() >= 2 && !frame.getString(1).isEmpty()) {
+            try {
+                limit = (int) Math.max(1, Math.min(MAX_PAGE_SIZE, frame.getLong(1)));
+            } catch (NumberFormatException e) {
+                // Fall back to the default page size.
+            }
+        }
+        String beforeCursor = frame.size() >= 3 ? frame.getString(2) : null;
+        MessagePage page = server.getMongoService().getMessagePage(conversationId, username, limit, beforeCursor);
+        List<Frame> reply = new ArrayList<>(page.getMessages().size() + 1);
+        for (MessageRecord msg : page.getMessages()) {
+            reply.add(Frame.of(Opcode.HISTORY_ITEM, conversationId, msg.getMessageId(), msg.getSeq(), msg.getText()));
+        }
+        reply.add(Frame.of(Opcode.HISTORY_PAGE, conversationId, page.getMessages().size(), page.getNextCursor()));
+        sendReply(reply);
+    }
+
+    /**
+     * SYNC|conversationId|sinceSeq — the messages numbered after sinceSeq, oldest first, as
+     * SYNC_ITEM|conversationId|seq|messageId|text lines and then SYNC_END|conversationId|count|more.
+     * At most MAX_PAGE_SIZE messages are sent; when more is 1 the client asks again from the
+     * last seq it received.
+     * <p>
+     * Messages the server has numbered but not yet written would be missing from the reply,
+     * and their pushes may have gone out before the client had the conversation open, so the
+     * reply waits until those are written. Anything numbered after that is pushed to the
+     * client, which by then has asked for the conversation.
+     */
+    private void handleSync(Frame frame) {
+        if (frame.size() < 2) return;
+        String conversationId = frame.getString(0);
+        long sinceSeq;
+        try {
+            sinceSeq = Math.max(0, frame.getLong(1));
+        } catch (NumberFormatException e) {
+            transport.send(Frame.of(Opcode.ERROR, "Invalid sequence number"));
+            return;
+        }
+        CompletableFuture<Void> settled = server.getMongoService().whenSettled(conversationId);
+        if (settled.isDone()) {
+            replySync(conversationId, sinceSeq);
+            return;
+        }
+        // Completed by the persistence thread; the query runs elsewhere so it never delays writes.
+        settled.thenRunAsync(() -> replySync(conversationId, sinceSeq)).exceptionally(error -> {
+            System.err.println("SYNC for " + conversationId + " failed: " + error.getMessage());
+            transport.send(Frame.of(Opcode.ERROR, "Could not sync messages"));
+            return null;
+        });
+    }
+
+    private void replySync(String conversationId, long sinceSeq) {
+        List<MessageRecord> messages = server.getMongoService()
+                .getMessagesAfterSeq(conversationId, username, sinceSeq, MAX_PAGE_SIZE + 1);
+        boolean more = messages.size() > MAX_PAGE_SIZE;
+        if (more) messages = messages.subList(0, MAX_PAGE_SIZE);
+        List<Frame> reply = new ArrayList<>(messages.size() + 1);
+        for (MessageRecord msg : messages) {
+            reply.add(Frame.of(Opcode.SYNC_ITEM, conversationId, msg.getSeq(), msg.getMessageId(), msg.getText()));
+        }
+        reply.add(Frame.of(Opcode.SYNC_END, conversationId, messages.size(), more ? 1 : 0));
+        sendReply(reply);
+    }
+
+    private void handleSearchUsers(Frame frame) {
+        if (frame.size() < 1) return;
+        String prefix = frame.getString(0).toLowerCase();
+        List<Frame> reply = new ArrayList<>();
+        for (UserRecord r : server.getMongoService().searchUsersByPrefix(prefix)) {
+            reply.add(Frame.of(Opcode.USER_RESULT, r.getEmail(), r.getFullName()));
+        }
+        sendReply(reply);
+    }
+
+    // ----- File Sharing Commands -----
+    private void handleSendFile(Frame frame) {
+        if (frame.size() < 3) return;
+        String conversationId = frame.getString(0);
+        String fileName = frame.getString(1);
+        try {
+            byte[] fileBytes = frame.getBytes(2);
+            String blobId = server.getFileTransfers().storeWholeFile(fileBytes);
+            // Save file message with summary text: "<SenderFullName> shared a file: <fileName>"
+            PendingMessage saved = server.getMongoService().saveFileReference(conversationId, username, fileName,
+                    blobId, fileBytes.length, fullName);
+            if (saved.getPersisted().isCompletedExceptionally()) {
+                transport.send(Frame.of(Opcode.ERROR, "File could not be saved"));
+                return;
+            }
+            // Notify the recipient
+            String recipientEmail = server.getMongoService().getRecipientFromConversation(conversationId, username);
+            server.deliverFile(recipientEmail, conversationId, saved, fullName, fileName, fileBytes.length);
+            listOwnFile(conversationId, saved, fileName, fileBytes.length);
+            // No duplicate notification to sender – the sender will see the stored message when reloading.
+        } catch (IllegalArgumentException | IOException ex) {
+            transport.send(Frame.of(Opcode.ERROR, "File encryption failed"));
+        }
+    }
+
+    private void handleGetFile(Frame frame) {
+        if (frame.size() < 2) return;
+        String conversationId = frame.getString(0);
+        String requestedFile = frame.getString(1);
+        StoredFile file = server.getMongoService().findFile(conversationId, requestedFile);
+        if (file == null) {
+            transport.send(Frame.of(Opcode.FILE_DATA, requestedFile, "NOT_FOUND"));
+        } else {
+            // Decrypt the stored file data before sending to the client.
+            try (InputStream in = server.getFileTransfers().openFile(file, 0)) {
+                transport.send(Frame.of(Opcode.FILE_DATA, requestedFile, in.readAllBytes()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                transport.send(Frame.of(Opcode.FILE_DATA, requestedFile, "ERROR"));
+            }
+        }
+    }
+
+    // ----- Streaming File Transfer -----
+    // Files move in fixed-size chunks (base64 in the text protocol, raw bytes in the binary one).
+    // The receiver acknowledges each chunk with the next offset it expects, and the sender keeps
+    // at most FileTransferService.WINDOW chunks unacknowledged. Re-sending a BEGIN with the same
+    // transfer ID resumes from the last offset.
+
+    /** UPLOAD_BEGIN|uploadId|conversationId|size|fileName → UPLOAD_READY|uploadId|offset|chunkSize|window */
+    private void handleUploadBegin(Frame frame) {
+        if (frame.size() < 1) return;
+        String uploadId = frame.getString(0);
+        if (frame.size() < 4) {
+            transport.send(Frame.of(Opcode.UPLOAD_FAIL, uploadId, "Missing parts"));
+            return;
+        }
+        try {
+            FileTransferService.UploadSession upload = server.getFileTransfers()
+                    .beginUpload(uploadId, username, frame.getString(1), frame.getString(3), frame.getLong(2));
+            transport.send(Frame.of(Opcode.UPLOAD_READY, uploadId, upload.received,
+                    FileTransferService.CHUNK_SIZE, FileTransferService.WINDOW));
+        } catch (NumberFormatException | IOException e) {
+            transport.send(Frame.of(Opcode.UPLOAD_FAIL, uploadId, e.getMessage()));
+        }
+    }
+
+    /** UPLOAD_CHUNK|uploadId|offset|data → UPLOAD_ACK|uploadId|nextOffset */
+    private void handleUploadChunk(Frame frame) {
+        if (frame.size() < 3) return;
+        String uploadId = frame.getString(0);
+        FileTransferService.UploadSession upload = server.getFileTransfers().getUpload(uploadId, username);
+        if (upload == null) {
+            transport.send(Frame.of(Opcode.UPLOAD_FAIL, uploadId, "Unknown upload"));
+            return;
+        }
+        try {
+            long next = server.getFileTransfers().appendChunk(upload, frame.getLong(1), frame.getBytes(2));
+            transport.send(Frame.of(Opcode.UPLOAD_ACK, uploadId, next));
+        } catch (IllegalArgumentException | IOException e) {
+            transport.send(Frame.of(Opcode.UPLOAD_FAIL, uploadId, e.getMessage()));
+        }
+    }
+
+    /** UPLOAD_END|uploadId → UPLOAD_DONE|uploadId|fileName, and NEW_FILE to the recipient. */
+    private void handleUploadEnd(Frame frame) {
+        if (frame.size() < 1) return;
+        String uploadId = frame.getString(0);
+        FileTransferService.UploadSession upload = server.getFileTransfers().getUpload(uploadId, username);
+        if (upload == null) {
+            transport.send(Frame.of(Opcode.UPLOAD_FAIL, uploadId, "Unknown upload"));
+            return;
+        }
+        try {
+            String fileRef = server.getFileTransfers().completeUpload(upload);
+            PendingMessage saved = server.getMongoService().saveFileReference(upload.conversationId, username,
+                    upload.fileName, fileRef, upload.size, fullName);
+            saved.getPersisted().whenComplete((ignored, error) -> transport.send(error == null
+                    ? Frame.of(Opcode.UPLOAD_DONE, uploadId, upload.fileName)
+                    : Frame.of(Opcode.UPLOAD_FAIL, uploadId, "Could not save file message")));
+            if (saved.getPersisted().isCompletedExceptionally()) return;
+            String recipientEmail = server.getMongoService().getRecipientFromConversation(upload.conversationId, username);
+            server.deliverFile(recipientEmail, upload.conversationId, saved, fullName, upload.fileName, upload.size);
+            listOwnFile(upload.conversationId, saved, upload.fileName, upload.size);
+        } catch (IOException e) {
+            transport.send(Frame.of(Opcode.UPLOAD_FAIL, uploadId, e.getMessage()));
+        }
+    }
+
+    /** DOWNLOAD_BEGIN|downloadId|conversationId|offset|fileName → DOWNLOAD_READY|downloadId|size, then chunks. */
+    private void handleDownloadBegin(Frame frame) {
+        if (frame.size() < 1) return;
+        String downloadId = frame.getString(0);
+        if (!FileTransferService.isValidTransferId(downloadId) || frame.size() < 4) {
+            transport.send(Frame.of(Opcode.DOWNLOAD_FAIL, downloadId, "Missing parts"));
+            return;
+        }
+        StoredFile file = server.getMongoService().findFile(frame.getString(1), frame.getString(3));
+        if (file == null) {
+            transport.send(Frame.of(Opcode.DOWNLOAD_FAIL, downloadId, "NOT_FOUND"));
+            return;
+        }
+        try {
+            long offset = frame.getLong(2);
+            DownloadSession download = new DownloadSession(downloadId,
+                    server.getFileTransfers().openFile(file, offset), offset);
+            synchronized (downloads) {
+                DownloadSession previous = downloads.put(downloadId, download);
+                if (previous != null) previous.close();
+            }
+            transport.send(Frame.of(Opcode.DOWNLOAD_READY, downloadId, file.getSize()));
+            pumpDownload(downloadId, download);
+        } catch (NumberFormatException | IOException e) {
+            transport.send(Frame.of(Opcode.DOWNLOAD_FAIL, downloadId, "ERROR"));
+        }
+    }
+
+    /** DOWNLOAD_ACK|downloadId|nextOffset — frees window space for more chunks. */
+    private void handleDownloadAck(Frame frame) {
+        if (frame.size() < 2) return;
+        String downloadId = frame.getString(0);
+        DownloadSession download;
+        synchronized (downloads) {
+            download = downloads.get(downloadId);
+        }
+        if (download == null) return;
+        try {
+            download.acknowledge(frame.getLong(1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        pumpDownload(downloadId, download);
+    }
+
+    private void pumpDownload(String downloadId, DownloadSession download) {
+        boolean finished;
+        try {
+            finished = download.pump(transport);
+        } catch (IOException e) {
+            transport.send(Frame.of(Opcode.DOWNLOAD_FAIL, downloadId, "ERROR"));
+            finished = true;
+        }
+        if (finished) {
+            synchronized (downloads) {
+                downloads.remove(downloadId, download);
+            }
+            download.close();
+        }
+    }
+
+    // New command to get the list of files for a conversation.
+    /**
+     * GET_FILES|conversationId|sinceSeq — FILE_ITEM|conversationId|attachmentId|seq|size|sender|fileName
+     * for every file shared after sinceSeq (0 for all of them). Without sinceSeq the reply is
+     * the original FILE_LIST|fileName lines.
+     */
+    private void handleGetFiles(Frame frame) {
+        if (frame.size() < 1) return;
+        String conversationId = frame.getString(0);
+        if (frame.size() >= 2) {
+            long sinceSeq;
+            try {
+                sinceSeq = Math.max(0, frame.getLong(1));
+            } catch (NumberFormatException e) {
+                sinceSeq = 0;
+            }
+            List<Frame> reply = new ArrayList<>();
+            for (AttachmentRecord file : server.getMongoService().getAttachments(conversationId, sinceSeq)) {
+                reply.add(Frame.of(Opcode.FILE_ITEM, conversationId, file.getAttachmentId(), file.getSeq(),
+                        file.getSize(), file.getSenderName(), file.getFileName()));
+            }
+            sendReply(reply);
+            return;
+        }
+        List<Frame> reply = new ArrayList<>();
+        for (String file : server.getMongoService().getFileNames(conversationId)) {
+            reply.add(Frame.of(Opcode.FILE_LIST, file));
+        }
+        sendReply(reply);
+    }
+
+    /**
+     * Clients that negotiated RESUME get MESSAGE|conversationId|messageId|seq|line, so they can
+     * track what they have seen; others get the original NEW_MESSAGE|sender|text.
+     */
+    public void sendChatMessage(String conversationId, PendingMessage message, String senderName, String text) {
+        transport.push(resumable
+                ? Frame.of(Opcode.MESSAGE, conversationId, message.getMessageId(), message.getSeq(), senderName + ": " + text)
+                : Frame.of(Opcode.NEW_MESSAGE, senderName, text));
+    }
+
+    /**
+     * Clients that negotiated RESUME get the file's chat line as a MESSAGE and its entry as a
+     * FILE_ITEM; others get the original NEW_FILE|sender|fileName.
+     */
+    public void sendFileNotice(String conversationId, PendingMessage message, String senderName,
+                               String fileName, long size) {
+        if (!resumable) {
+            transport.push(Frame.of(Opcode.NEW_FILE, senderName, fileName));
+            return;
+        }
+        transport.push(Frame.of(Opcode.MESSAGE, conversationId, message.getMessageId(), message.getSeq(),
+                senderName + " shared a file: " + fileName));
+        transport.push(Frame.of(Opcode.FILE_ITEM, conversationId, message.getMessageId(), message.getSeq(),
+                size, senderName, fileName));
+    }
+
+    /**
+     * Gives the sender its own upload as a stored chat line and a Files tab entry, for clients
+     * that track conversations by seq; they do not echo the upload themselves.
+     */
+    private void listOwnFile(String conversationId, PendingMessage saved, String fileName, long size) {
+        if (resumable) {
+            sendReply(List.of(
+                    Frame.of(Opcode.MESSAGE, conversationId, saved.getMessageId(), saved.getSeq(),
+                            "You shared a file: " + fileName),
+                    Frame.of(Opcode.FILE_ITEM, conversationId, saved.getMessageId(), saved.getSeq(),
+                            size, "You", fileName)));
+        }
+    }
+
+    /** Pushes a frame caused by another user; see {@link ClientTransport#push(Frame)}. */
+    public void sendMessage(Frame frame) {
+        transport.push(frame);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+}
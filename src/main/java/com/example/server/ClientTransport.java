@@ -0,0 +1,33 @@
+package com.example.server;
+
+import com.example.protocol.Frame;
+
+import java.util.List;
+
+/**
+ * The connection a {@link ClientHandler} talks through. Each connection engine
+ * supplies its own implementation.
+ */
+interface ClientTransport {
+    /** Queues one frame for the client, in whichever protocol the connection is using. */
+    void send(Frame frame);
+
+    /** Queues several frames back to back, with nothing sent from other threads in between. */
+    void sendAll(List<Frame> frames);
+
+    /**
+     * Queues a frame caused by another user. Unlike replies, pushes are subject to the
+     * server's {@link OutboundPolicy}: a client that is not reading may miss them or be
+     * disconnected, but never holds up the sender.
+     */
+    void push(Frame frame);
+
+    /**
+     * Switches the connection to the binary protocol. The reply is still sent as text, since
+     * the client only switches once it has read it; everything after it is binary.
+     */
+    void upgradeToBinary(Frame reply);
+
+    /** Closes the connection. Safe to call more than once. */
+    void close();
+}
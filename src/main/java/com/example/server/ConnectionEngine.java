@@ -0,0 +1,14 @@
+package com.example.server;
+
+import java.io.IOException;
+
+/**
+ * Accepts client connections and feeds their protocol lines to {@link ClientHandler}s.
+ * Selected with the CHAT_ENGINE setting ("threaded" or "nio").
+ */
+interface ConnectionEngine {
+    /** Serves connections until the server socket is closed. */
+    void serve() throws IOException;
+
+    String getName();
+}
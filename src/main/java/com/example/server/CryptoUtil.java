@@ -1,26 +1,119 @@
 package com.example.server;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 
+/**
+ * Message and attachment encryption. Messages are written in the "v2:" format, AES-GCM with a
+ * random 12-byte IV per message, stored as "v2:" + base64(iv + ciphertext + tag). Text without
+ * the prefix is the original AES/ECB format and is still decrypted, so existing history stays
+ * readable. Ciphers are cached per thread rather than looked up from the provider on every call.
+ */
 public class CryptoUtil {
     private static final String ALGORITHM = "AES";
+    private static final String LEGACY_TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String GCM_PREFIX = "v2:";
+    private static final int GCM_IV_BYTES = 12;
+    private static final int GCM_TAG_BITS = 128;
     private static final byte[] keyBytes = "1234567890123456".getBytes(StandardCharsets.UTF_8);
     private static final SecretKeySpec secretKey = new SecretKeySpec(keyBytes, ALGORITHM);
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> legacyCipher = ThreadLocal.withInitial(() -> newCipher(LEGACY_TRANSFORMATION));
+    private static final ThreadLocal<Cipher> gcmCipher = ThreadLocal.withInitial(() -> newCipher(GCM_TRANSFORMATION));
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(transformation + " is not available", e);
+        }
+    }
 
     public static String encrypt(String plainText) throws Exception {
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        byte[] encryptedBytes = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(encryptedBytes);
+        return encryptGcm(gcmCipher.get(), plainText);
     }
 
     public static String decrypt(String cipherText) throws Exception {
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        if (cipherText.startsWith(GCM_PREFIX)) {
+            return decryptGcm(gcmCipher.get(), cipherText);
+        }
+        Cipher cipher = legacyCipher.get();
         cipher.init(Cipher.DECRYPT_MODE, secretKey);
         byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(cipherText));
         return new String(decryptedBytes, StandardCharsets.UTF_8);
     }
+
+    /** Encrypts every text with one cipher lookup. */
+    public static List<String> encryptAll(List<String> plainTexts) throws GeneralSecurityException {
+        Cipher cipher = gcmCipher.get();
+        List<String> result = new ArrayList<>(plainTexts.size());
+        for (String plainText : plainTexts) {
+            result.add(encryptGcm(cipher, plainText));
+        }
+        return result;
+    }
+
+    /**
+     * Decrypts every text, in either format. A text that cannot be decrypted comes back as null
+     * rather than failing the whole batch.
+     */
+    public static List<String> decryptAll(List<String> cipherTexts) {
+        List<String> result = new ArrayList<>(cipherTexts.size());
+        for (String cipherText : cipherTexts) {
+            try {
+                result.add(decrypt(cipherText));
+            } catch (Exception e) {
+                result.add(null);
+            }
+        }
+        return result;
+    }
+
+    private static String encryptGcm(Cipher cipher, String plainText) throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_BYTES];
+        random.nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(GCM_IV_BYTES + cipher.getOutputSize(plainBytes.length));
+        out.put(iv);
+        cipher.doFinal(ByteBuffer.wrap(plainBytes), out);
+        return GCM_PREFIX + Base64.getEncoder().encodeToString(out.array());
+    }
+
+    private static String decryptGcm(Cipher cipher, String cipherText) throws GeneralSecurityException {
+        byte[] data = Base64.getDecoder().decode(cipherText.substring(GCM_PREFIX.length()));
+        if (data.length < GCM_IV_BYTES) throw new GeneralSecurityException("Truncated message");
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_BITS, data, 0, GCM_IV_BYTES));
+        byte[] decryptedBytes = cipher.doFinal(data, GCM_IV_BYTES, data.length - GCM_IV_BYTES);
+        return new String(decryptedBytes, StandardCharsets.UTF_8);
+    }
+
+    // Attachments keep the original format: blobs are addressed by their plaintext hash, so
+    // existing blobs must stay readable as they are. Each stream needs a cipher of its own.
+
+    /** Reads the encrypted form of a plaintext stream. */
+    public static InputStream encryptingInputStream(InputStream plaintext) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(LEGACY_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+        return new CipherInputStream(plaintext, cipher);
+    }
+
+    /** Reads back data encrypted by {@link #encryptingInputStream}. */
+    public static InputStream decryptingStream(InputStream in) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(LEGACY_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, secretKey);
+        return new CipherInputStream(in, cipher);
+    }
 }
@@ -0,0 +1,59 @@
+package com.example.server;
+
+import com.example.protocol.Frame;
+import com.example.protocol.Opcode;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * One file being streamed to a client. Chunks are only read from storage while fewer than
+ * {@link FileTransferService#WINDOW} of them are unacknowledged, so a slow reader holds the
+ * transfer back instead of piling chunks up in memory.
+ */
+class DownloadSession {
+    private final String downloadId;
+    private final InputStream in;
+    private long sent;
+    private long acked;
+    private boolean endOfFile;
+
+    DownloadSession(String downloadId, InputStream in, long offset) {
+        this.downloadId = downloadId;
+        this.in = in;
+        this.sent = offset;
+        this.acked = offset;
+    }
+
+    void acknowledge(long offset) {
+        if (offset > acked && offset <= sent) acked = offset;
+    }
+
+    /**
+     * Sends chunks until the window is full. Returns true once the whole file has been
+     * sent and acknowledged, after writing DOWNLOAD_END.
+     */
+    boolean pump(ClientTransport transport) throws IOException {
+        long window = (long) FileTransferService.WINDOW * FileTransferService.CHUNK_SIZE;
+        while (!endOfFile && sent - acked < window) {
+            byte[] data = in.readNBytes(FileTransferService.CHUNK_SIZE);
+            if (data.length < FileTransferService.CHUNK_SIZE) endOfFile = true;
+            if (data.length == 0) break;
+            transport.send(Frame.of(Opcode.DOWNLOAD_CHUNK, downloadId, sent, data));
+            sent += data.length;
+        }
+        if (endOfFile && acked == sent) {
+            transport.send(Frame.of(Opcode.DOWNLOAD_END, downloadId, sent));
+            return true;
+        }
+        return false;
+    }
+
+    void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Nothing left to clean up.
+        }
+    }
+}
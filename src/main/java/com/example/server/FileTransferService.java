@@ -0,0 +1,159 @@
+package com.example.server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Chunked file transfers. Uploads are appended chunk by chunk to a staging file named
+ * after the client's upload ID, so an interrupted upload resumes from the staged size.
+ * Once complete the staging file is hashed and encrypted into the attachment store.
+ * Neither direction ever holds more than one chunk of a file in memory.
+ */
+class FileTransferService {
+    /** Raw bytes per chunk; 48 KB encodes to exactly 64 KB of base64. */
+    static final int CHUNK_SIZE = 48 * 1024;
+    /** Chunks a sender may have in flight before it must wait for an acknowledgement. */
+    static final int WINDOW = 8;
+
+    private static final Pattern TRANSFER_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+    private static final Duration STALE_UPLOAD_AGE = Duration.ofDays(1);
+
+    private final Path stagingDir;
+    private final AttachmentStore attachments;
+    private final long maxUploadBytes;
+    private final ConcurrentHashMap<String, UploadSession> uploads = new ConcurrentHashMap<>();
+
+    FileTransferService(Path dataDir, AttachmentStore attachments, long maxUploadBytes) throws IOException {
+        this.stagingDir = Files.createDirectories(dataDir.resolve("uploads"));
+        this.attachments = attachments;
+        this.maxUploadBytes = maxUploadBytes;
+        removeStaleUploads();
+    }
+
+    static boolean isValidTransferId(String id) {
+        return id != null && TRANSFER_ID.matcher(id).matches();
+    }
+
+    /**
+     * Starts an upload, or resumes it if the same user already staged part of it.
+     * The returned session's received count is the offset the client should continue from.
+     */
+    UploadSession beginUpload(String uploadId, String owner, String conversationId, String fileName, long size)
+            throws IOException {
+        if (!isValidTransferId(uploadId)) throw new IOException("Invalid upload ID");
+        if (size < 0 || size > maxUploadBytes) throw new IOException("File too large");
+        UploadSession session = uploads.computeIfAbsent(uploadId,
+                id -> new UploadSession(id, owner, conversationId, fileName, size, stagingDir.resolve(id + ".part")));
+        if (!session.matches(owner, conversationId, fileName, size)) {
+            throw new IOException("Upload ID already in use");
+        }
+        synchronized (session) {
+            long staged = Files.exists(session.partFile) ? Files.size(session.partFile) : 0;
+            if (staged > size) {
+                Files.delete(session.partFile);
+                staged = 0;
+            }
+            session.received = staged;
+        }
+        return session;
+    }
+
+    UploadSession getUpload(String uploadId, String owner) {
+        UploadSession session = uploads.get(uploadId);
+        return session != null && session.owner.equals(owner) ? session : null;
+    }
+
+    /** Appends a chunk at the given offset and returns the new received count. */
+    long appendChunk(UploadSession session, long offset, byte[] data) throws IOException {
+        synchronized (session) {
+            if (offset != session.received) {
+                throw new IOException("Expected offset " + session.received);
+            }
+            if (data.length > CHUNK_SIZE || session.received + data.length > session.size) {
+                throw new IOException("Chunk exceeds declared size");
+            }
+            try (OutputStream out = Files.newOutputStream(session.partFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(data);
+            }
+            session.received += data.length;
+            return session.received;
+        }
+    }
+
+    /** Moves a fully received upload into the attachment store and returns its blob ID. */
+    String completeUpload(UploadSession session) throws IOException {
+        synchronized (session) {
+            if (session.received != session.size) {
+                throw new IOException("Upload incomplete");
+            }
+            String fileRef = attachments.store(session.partFile);
+            Files.deleteIfExists(session.partFile);
+            uploads.remove(session.uploadId);
+            return fileRef;
+        }
+    }
+
+    /** Stores a file sent whole with the legacy SEND_FILE command and returns its blob ID. */
+    String storeWholeFile(byte[] content) throws IOException {
+        return attachments.store(content);
+    }
+
+    /** Opens the decrypted contents of a stored file, positioned at the given offset. */
+    InputStream openFile(StoredFile file, long offset) throws IOException {
+        InputStream in;
+        if (file.isInline()) {
+            try {
+                in = new ByteArrayInputStream(Base64.getDecoder().decode(CryptoUtil.decrypt(file.getInlineData())));
+            } catch (Exception e) {
+                throw new IOException("Could not decrypt file", e);
+            }
+        } else {
+            in = attachments.open(file.getFileRef());
+        }
+        in.skipNBytes(offset);
+        return in;
+    }
+
+    private void removeStaleUploads() throws IOException {
+        Instant cutoff = Instant.now().minus(STALE_UPLOAD_AGE);
+        try (var parts = Files.list(stagingDir)) {
+            for (Path part : (Iterable<Path>) parts::iterator) {
+                if (Files.getLastModifiedTime(part).toInstant().isBefore(cutoff)) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+    }
+
+    static class UploadSession {
+        final String uploadId;
+        final String owner;
+        final String conversationId;
+        final String fileName;
+        final long size;
+        final Path partFile;
+        long received;
+
+        UploadSession(String uploadId, String owner, String conversationId, String fileName, long size, Path partFile) {
+            this.uploadId = uploadId;
+            this.owner = owner;
+            this.conversationId = conversationId;
+            this.fileName = fileName;
+            this.size = size;
+            this.partFile = partFile;
+        }
+
+        boolean matches(String owner, String conversationId, String fileName, long size) {
+            return this.owner.equals(owner) && this.conversationId.equals(conversationId)
+                    && this.fileName.equals(fileName) && this.size == size;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.server;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.model.Filters;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Blobs in a GridFS bucket, using the blob ID as the GridFS file name. GridFS splits each
+ * blob into 255 KB chunk documents, so blobs are not limited by the 16 MB document size.
+ */
+public class GridFsBlobStore implements BlobStore {
+    private final GridFSBucket bucket;
+
+    public GridFsBlobStore(MongoDatabase database) {
+        this.bucket = GridFSBuckets.create(database, "blobs");
+    }
+
+    @Override
+    public boolean exists(String blobId) throws IOException {
+        try {
+            return bucket.find(Filters.eq("filename", blobId)).first() != null;
+        } catch (MongoException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(String blobId, InputStream content) throws IOException {
+        try {
+            if (!exists(blobId)) {
+                bucket.uploadFromStream(blobId, content);
+            }
+        } catch (MongoException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public InputStream read(String blobId) throws IOException {
+        try {
+            return bucket.openDownloadStream(blobId);
+        } catch (MongoException e) {
+            throw new FileNotFoundException(blobId);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "gridfs";
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Turns stored messages into display text. Large histories are cut into contiguous slices
+ * that are decrypted and formatted on a small dedicated pool, then stitched back together
+ * in their original order; histories below {@code parallelThreshold} are done inline on the
+ * caller's thread, where handing off would cost more than it saves.
+ */
+class HistoryMaterializer {
+    /** Smallest slice worth sending to another thread. */
+    private static final int MIN_SLICE = 64;
+
+    private final ExecutorService pool;
+    private final int threads;
+    private final int parallelThreshold;
+
+    HistoryMaterializer(int threads, int parallelThreshold) {
+        this.threads = threads;
+        this.parallelThreshold = parallelThreshold;
+        // A full queue runs the slice on the caller, which also throttles a burst of big loads.
+        // Unlike CallerRunsPolicy this also runs it once the pool is shut down, rather than
+        // dropping it and leaving map() waiting forever for its result.
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 16), r -> {
+                    Thread t = new Thread(r, "history-materializer");
+                    t.setDaemon(true);
+                    return t;
+                }, (slice, executor) -> slice.run());
+    }
+
+    /** Applies {@code work} to the items slice by slice and returns the results in item order. */
+    <T, R> List<R> map(List<T> items, Function<List<T>, List<R>> work) {
+        if (items.size() < parallelThreshold || threads < 2) {
+            return work.apply(items);
+        }
+        int sliceSize = Math.max(MIN_SLICE, (items.size() + threads - 1) / threads);
+        List<CompletableFuture<List<R>>> slices = new ArrayList<>();
+        for (int start = 0; start < items.size(); start += sliceSize) {
+            List<T> slice = items.subList(start, Math.min(items.size(), start + sliceSize));
+            slices.add(CompletableFuture.supplyAsync(() -> work.apply(slice), pool));
+        }
+        List<R> result = new ArrayList<>(items.size());
+        for (CompletableFuture<List<R>> slice : slices) {
+            result.addAll(slice.join());
+        }
+        return result;
+    }
+
+    void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Blobs as files on local disk, sharded into subdirectories by the first two characters
+ * of the ID so no directory grows too large.
+ */
+public class LocalBlobStore implements BlobStore {
+    private static final Pattern BLOB_ID = Pattern.compile("[A-Za-z0-9-]{3,128}");
+
+    private final Path root;
+
+    public LocalBlobStore(Path root) throws IOException {
+        this.root = Files.createDirectories(root);
+    }
+
+    private Path resolve(String blobId) throws IOException {
+        if (blobId == null || !BLOB_ID.matcher(blobId).matches()) throw new FileNotFoundException(blobId);
+        Path sharded = root.resolve(blobId.substring(0, 2)).resolve(blobId);
+        // Attachments uploaded before content addressing were stored flat under a random ID.
+        Path flat = root.resolve(blobId);
+        return Files.exists(sharded) || !Files.exists(flat) ? sharded : flat;
+    }
+
+    @Override
+    public boolean exists(String blobId) throws IOException {
+        return Files.exists(resolve(blobId));
+    }
+
+    @Override
+    public void write(String blobId, InputStream content) throws IOException {
+        Path target = resolve(blobId);
+        if (Files.exists(target)) return;
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling(blobId + "." + UUID.randomUUID() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            content.transferTo(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        // Identical content may have been written concurrently; either copy is correct.
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public InputStream read(String blobId) throws IOException {
+        return Files.newInputStream(resolve(blobId));
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+}
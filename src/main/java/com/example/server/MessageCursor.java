@@ -0,0 +1,44 @@
+package com.example.server;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Position in a conversation's history, ordered like the (timestamp, _id) index.
+ * Clients see it as the opaque token "timestamp-objectId".
+ */
+class MessageCursor {
+    private final long timestamp;
+    private final ObjectId id;
+
+    private MessageCursor(long timestamp, ObjectId id) {
+        this.timestamp = timestamp;
+        this.id = id;
+    }
+
+    static MessageCursor of(Document msgDoc) {
+        return new MessageCursor(msgDoc.getLong("timestamp"), msgDoc.getObjectId("_id"));
+    }
+
+    /** Returns null for a missing or malformed token, which callers treat as "latest". */
+    static MessageCursor parse(String token) {
+        if (token == null || token.isBlank()) return null;
+        int dash = token.indexOf('-');
+        if (dash <= 0) return null;
+        try {
+            long timestamp = Long.parseLong(token.substring(0, dash));
+            String hex = token.substring(dash + 1);
+            return ObjectId.isValid(hex) ? new MessageCursor(timestamp, new ObjectId(hex)) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    long getTimestamp() { return timestamp; }
+    ObjectId getId() { return id; }
+
+    @Override
+    public String toString() {
+        return timestamp + "-" + id.toHexString();
+    }
+}
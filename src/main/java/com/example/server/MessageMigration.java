@@ -0,0 +1,169 @@
+package com.example.server;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Moves messages embedded in the legacy conversations.messages array into the
+ * messages collection, one document per message, then removes the array.
+ *
+ * Each migrated document carries its position in the old array as legacyIndex.
+ * A conversation is migrated by deleting any documents left by an interrupted run,
+ * inserting the array contents, and only then unsetting the array, so the
+ * migration can be re-run safely at any point.
+ */
+public class MessageMigration {
+    private final MongoCollection<Document> conversationsCollection;
+    private final MongoCollection<Document> messagesCollection;
+
+    public MessageMigration(MongoDatabase database) {
+        this.conversationsCollection = database.getCollection("conversations");
+        this.messagesCollection = database.getCollection("messages");
+    }
+
+    /**
+     * Migrates every conversation that still has an embedded messages array.
+     * Returns the number of messages moved.
+     */
+    public int run() {
+        int migrated = 0;
+        List<String> conversationIds = new ArrayList<>();
+        for (Document conv : conversationsCollection.find(Filters.exists("messages"))
+                .projection(Projections.include("conversationId"))) {
+            conversationIds.add(conv.getString("conversationId"));
+        }
+        for (String conversationId : conversationIds) {
+            migrated += migrateConversation(conversationId);
+        }
+        if (!conversationIds.isEmpty()) {
+            System.out.println("Migrated " + migrated + " messages from " + conversationIds.size() + " conversations");
+        }
+        return migrated;
+    }
+
+    private int migrateConversation(String conversationId) {
+        Document conv = conversationsCollection.find(Filters.eq("conversationId", conversationId)).first();
+        if (conv == null) return 0;
+        @SuppressWarnings("unchecked")
+        List<Document> messages = (List<Document>) conv.get("messages", List.class);
+        messagesCollection.deleteMany(Filters.and(
+                Filters.eq("conversationId", conversationId),
+                Filters.exists("legacyIndex")));
+        if (messages != null && !messages.isEmpty()) {
+            List<Document> docs = new ArrayList<>(messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                Document msgDoc = new Document(messages.get(i));
+                msgDoc.remove("_id");
+                msgDoc.append("conversationId", conversationId).append("legacyIndex", i);
+                docs.add(msgDoc);
+            }
+            messagesCollection.insertMany(docs);
+        }
+        conversationsCollection.updateOne(Filters.eq("conversationId", conversationId), Updates.unset("messages"));
+        return messages != null ? messages.size() : 0;
+    }
+
+    /**
+     * Moves file bytes stored inline in message documents (fileData) into the attachment
+     * store, leaving only the blob ID and size behind. Returns the number of files moved.
+     */
+    public int migrateInlineFiles(AttachmentStore attachments) {
+        int migrated = 0;
+        for (Document msgDoc : messagesCollection.find(Filters.exists("fileData"))
+                .projection(Projections.include("fileData"))) {
+            byte[] content;
+            try {
+                content = Base64.getDecoder().decode(CryptoUtil.decrypt(msgDoc.getString("fileData")));
+            } catch (Exception e) {
+                // CryptoUtil.decrypt declares Exception; only the decryption and decoding are in here.
+                System.err.println("Could not decrypt file in message " + msgDoc.getObjectId("_id") + ": " + e.getMessage());
+                continue;
+            }
+            try {
+                String blobId = attachments.store(content);
+                messagesCollection.updateOne(Filters.eq("_id", msgDoc.getObjectId("_id")), Updates.combine(
+                        Updates.set("fileRef", blobId),
+                        Updates.set("fileSize", (long) content.length),
+                        Updates.unset("fileData")));
+                migrated++;
+            } catch (IOException e) {
+                System.err.println("Could not migrate file in message " + msgDoc.getObjectId("_id") + ": " + e.getMessage());
+            }
+        }
+        if (migrated > 0) {
+            System.out.println("Moved " + migrated + " inline files to the attachment store");
+        }
+        return migrated;
+    }
+
+    /**
+     * Numbers messages stored before sequence numbers existed. Within each conversation they
+     * continue after the highest number already assigned, in timestamp order. Returns the
+     * number of messages numbered.
+     */
+    public int assignSequenceNumbers() {
+        int assigned = 0;
+        List<String> conversationIds = messagesCollection
+                .distinct("conversationId", Filters.exists("seq", false), String.class)
+                .into(new ArrayList<>());
+        for (String conversationId : conversationIds) {
+            Document last = messagesCollection
+                    .find(Filters.and(Filters.eq("conversationId", conversationId), Filters.exists("seq")))
+                    .sort(Sorts.descending("seq"))
+                    .projection(Projections.include("seq"))
+                    .first();
+            long seq = last != null ? last.getLong("seq") : 0;
+            List<WriteModel<Document>> updates = new ArrayList<>();
+            for (Document msgDoc : messagesCollection
+                    .find(Filters.and(Filters.eq("conversationId", conversationId), Filters.exists("seq", false)))
+                    .sort(Sorts.ascending("timestamp", "legacyIndex", "_id"))
+                    .projection(Projections.include("_id"))) {
+                updates.add(new UpdateOneModel<>(Filters.eq("_id", msgDoc.getObjectId("_id")), Updates.set("seq", ++seq)));
+                if (updates.size() == 1000) {
+                    messagesCollection.bulkWrite(updates);
+                    assigned += updates.size();
+                    updates.clear();
+                }
+            }
+            if (!updates.isEmpty()) {
+                messagesCollection.bulkWrite(updates);
+                assigned += updates.size();
+            }
+        }
+        if (assigned > 0) {
+            System.out.println("Assigned sequence numbers to " + assigned + " messages");
+        }
+        return assigned;
+    }
+
+    /** Runs the same migrations as server startup, including moving inline files out. */
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.load();
+        MongoService mongoService = new MongoService(config);
+        try {
+            MessageMigration migration = new MessageMigration(mongoService.getDatabase());
+            migration.run();
+            migration.assignSequenceNumbers();
+            Path dataDir = Path.of(config.getString("CHAT_DATA_DIR", "data"));
+            migration.migrateInlineFiles(new AttachmentStore(
+                    BlobStore.fromConfig(config, dataDir, mongoService.getDatabase())));
+        } catch (IOException e) {
+            System.err.println("Could not open the attachment store: " + e.getMessage());
+        } finally {
+            mongoService.close();
+        }
+    }
+}
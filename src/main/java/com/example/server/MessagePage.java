@@ -0,0 +1,16 @@
+package com.example.server;
+
+import java.util.List;
+
+public class MessagePage {
+    private final List<MessageRecord> messages;
+    private final String nextCursor;
+
+    public MessagePage(List<MessageRecord> messages, String nextCursor) {
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+    }
+    public List<MessageRecord> getMessages() { return messages; }
+    /** Cursor for the next older page, or null when this page reaches the start of the conversation. */
+    public String getNextCursor() { return nextCursor; }
+}
@@ -0,0 +1,19 @@
+package com.example.server;
+
+public class MessageRecord {
+    private final String conversationId;
+    private final String messageId;
+    private final long seq;
+    private final String text;
+
+    public MessageRecord(String conversationId, String messageId, long seq, String text) {
+        this.conversationId = conversationId;
+        this.messageId = messageId;
+        this.seq = seq;
+        this.text = text;
+    }
+    public String getConversationId() { return conversationId; }
+    public String getMessageId() { return messageId; }
+    public long getSeq() { return seq; }
+    public String getText() { return text; }
+}
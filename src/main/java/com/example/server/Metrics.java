@@ -0,0 +1,123 @@
+package com.example.server;
+
+import com.example.protocol.Opcode;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The server's counters, gauges and latency histograms. Recording is a striped counter
+ * increment or a histogram bucket increment; everything else (quantiles, formatting) happens
+ * when the metrics are read, by {@link MetricsEndpoint} or over JMX via {@link MetricsMBean}.
+ * Metric names follow the Prometheus text format, with at most one label.
+ */
+class Metrics {
+    private final Map<Opcode, LongAdder> commands = new EnumMap<>(Opcode.class);
+    private final Map<Opcode, LatencyHistogram> commandLatency = new EnumMap<>(Opcode.class);
+    private final Map<String, LatencyHistogram> mongoLatency = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    final LongAdder unknownCommands = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    /** Bytes waiting in all outbound queues together. */
+    final LongAdder outboundQueuedBytes = new LongAdder();
+    final LatencyHistogram encryption = new LatencyHistogram();
+    /** Decrypting one slice of a history reply, however many messages it holds. */
+    final LatencyHistogram decryptionBatch = new LatencyHistogram();
+    /** One bulkWrite of queued messages; the count is the number of batches. */
+    final LatencyHistogram persistFlush = new LatencyHistogram();
+
+    Metrics() {
+        for (Opcode opcode : Opcode.values()) {
+            commands.put(opcode, new LongAdder());
+            commandLatency.put(opcode, new LatencyHistogram());
+        }
+    }
+
+    /** Records one command from a client and how long its handler took. */
+    void recordCommand(Opcode opcode, long startNanos) {
+        commands.get(opcode).increment();
+        commandLatency.get(opcode).recordSince(startNanos);
+    }
+
+    void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** Times every database command the driver sends, by command name (find, insert, update...). */
+    CommandListener mongoListener() {
+        return new CommandListener() {
+            @Override
+            public void commandSucceeded(CommandSucceededEvent event) {
+                record(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS));
+            }
+
+            @Override
+            public void commandFailed(CommandFailedEvent event) {
+                record(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS));
+            }
+
+            private void record(String command, long nanos) {
+                mongoLatency.computeIfAbsent(command, c -> new LatencyHistogram()).record(nanos);
+            }
+        };
+    }
+
+    /** One value of one metric, as listed by {@link #snapshot()}. */
+    static final class Sample {
+        final String name;
+        final String labelName;
+        final String labelValue;
+        final double value;
+
+        Sample(String name, String labelName, String labelValue, double value) {
+            this.name = name;
+            this.labelName = labelName;
+            this.labelValue = labelValue;
+            this.value = value;
+        }
+    }
+
+    /** Reads every metric. Histograms become _count, _sum and quantile samples, in seconds. */
+    List<Sample> snapshot() {
+        List<Sample> samples = new ArrayList<>();
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            samples.add(new Sample(gauge.getKey(), null, null, gauge.getValue().getAsLong()));
+        }
+        samples.add(new Sample("chat_unknown_commands_total", null, null, unknownCommands.sum()));
+        samples.add(new Sample("chat_bytes_in_total", null, null, bytesIn.sum()));
+        samples.add(new Sample("chat_bytes_out_total", null, null, bytesOut.sum()));
+        samples.add(new Sample("chat_outbound_queued_bytes", null, null, outboundQueuedBytes.sum()));
+        for (Opcode opcode : Opcode.values()) {
+            long count = commands.get(opcode).sum();
+            if (count == 0) continue;
+            samples.add(new Sample("chat_commands_total", "command", opcode.name(), count));
+            addHistogram(samples, "chat_command_seconds", "command", opcode.name(), commandLatency.get(opcode));
+        }
+        for (Map.Entry<String, LatencyHistogram> mongo : new TreeMap<>(mongoLatency).entrySet()) {
+            addHistogram(samples, "chat_mongo_seconds", "command", mongo.getKey(), mongo.getValue());
+        }
+        addHistogram(samples, "chat_encrypt_seconds", null, null, encryption);
+        addHistogram(samples, "chat_decrypt_batch_seconds", null, null, decryptionBatch);
+        addHistogram(samples, "chat_persist_flush_seconds", null, null, persistFlush);
+        return samples;
+    }
+
+    private static void addHistogram(List<Sample> samples, String name, String labelName, String labelValue,
+                                     LatencyHistogram histogram) {
+        samples.add(new Sample(name + "_count", labelName, labelValue, histogram.getCount()));
+        samples.add(new Sample(name + "_sum", labelName, labelValue, histogram.getSumNanos() / 1e9));
+        samples.add(new Sample(name + "_p50", labelName, labelValue, histogram.quantile(0.50) / 1e9));
+        samples.add(new Sample(name + "_p99", labelName, labelValue, histogram.quantile(0.99) / 1e9));
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link Metrics} as plain text on GET /metrics, one "name{label="value"} number"
+ * line per sample, which Prometheus and most other scrapers read as is. Rates such as
+ * messages per second are left to the scraper, from the _total counters.
+ */
+class MetricsEndpoint {
+    private final HttpServer httpServer;
+
+    MetricsEndpoint(int port, Metrics metrics) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/metrics", exchange -> respond(exchange, metrics));
+        httpServer.start();
+    }
+
+    private static void respond(HttpExchange exchange, Metrics metrics) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = format(metrics).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    static String format(Metrics metrics) {
+        StringBuilder text = new StringBuilder();
+        for (Metrics.Sample sample : metrics.snapshot()) {
+            text.append(sample.name);
+            if (sample.labelName != null) {
+                text.append('{').append(sample.labelName).append("=\"").append(sample.labelValue).append("\"}");
+            }
+            text.append(' ');
+            if (sample.value == Math.rint(sample.value)) {
+                text.append((long) sample.value);
+            } else {
+                text.append(sample.value);
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    void close() {
+        httpServer.stop(0);
+    }
+}
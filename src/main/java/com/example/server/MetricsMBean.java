@@ -0,0 +1,83 @@
+package com.example.server;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes {@link Metrics} over JMX as com.example.server:type=Metrics. Each sample is a
+ * read-only attribute named like its scrape line, with the label value after a dot
+ * (chat_command_seconds_p99.SEND_MESSAGE). The attribute list follows whatever is recorded.
+ */
+class MetricsMBean implements DynamicMBean {
+    private final Metrics metrics;
+
+    MetricsMBean(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    static void register(Metrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(metrics),
+                    new ObjectName("com.example.server:type=Metrics"));
+        } catch (Exception e) {
+            System.err.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    private static String attributeName(Metrics.Sample sample) {
+        return sample.labelValue != null ? sample.name + "." + sample.labelValue : sample.name;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Metrics.Sample sample : metrics.snapshot()) {
+            if (attributeName(sample).equals(attribute)) return sample.value;
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        List<String> wanted = List.of(attributes);
+        AttributeList list = new AttributeList();
+        for (Metrics.Sample sample : metrics.snapshot()) {
+            String name = attributeName(sample);
+            if (wanted.contains(name)) list.add(new Attribute(name, sample.value));
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Metrics.Sample sample : metrics.snapshot()) {
+            attributes.add(new MBeanAttributeInfo(attributeName(sample), "java.lang.Double",
+                    sample.name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Chat server metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("Metrics have no operations");
+    }
+}
@@ -1,45 +1,152 @@
 package com.example.server;
 
+import com.mongodb.ConnectionString;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoWriteException;
 import com.mongodb.client.*;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.Updates;
-import com.mongodb.client.ClientSession;
-import io.github.cdimascio.dotenv.Dotenv;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.mindrot.jbcrypt.BCrypt;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class MongoService {
     private final MongoClient mongoClient;
     private final MongoDatabase database;
     private final MongoCollection<Document> usersCollection;
     private final MongoCollection<Document> conversationsCollection;
+    private final MongoCollection<Document> messagesCollection;
+    /** email -> full name, filled on read and on registration. */
+    private final LruCache<String, String> userProfiles;
+    /** conversationId -> participants, so routing a message needs no database read. */
+    private final LruCache<String, List<String>> conversationParticipants;
+    private final PersistencePipeline messageWrites;
+    private final UserSearchIndex userSearch = new UserSearchIndex();
+    private final int searchLimit;
+    private final HistoryMaterializer history;
+    private final SequenceAllocator sequences = new SequenceAllocator(this::getHighestSeq);
+    private final Metrics metrics;
 
     public MongoService() {
-        Dotenv dotenv = Dotenv.configure().load();
-        String mongoUri = dotenv.get("MONGO_URI");
-        mongoClient = MongoClients.create(mongoUri);
+        this(ServerConfig.load());
+    }
+
+    public MongoService(ServerConfig config) {
+        this(config, new Metrics());
+    }
+
+    MongoService(ServerConfig config, Metrics metrics) {
+        this.metrics = metrics;
+        String mongoUri = config.getString("MONGO_URI", null);
+        userProfiles = new LruCache<>(config.getInt("CHAT_USER_CACHE_SIZE", 10_000));
+        conversationParticipants = new LruCache<>(config.getInt("CHAT_CONVERSATION_CACHE_SIZE", 100_000));
+        mongoClient = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(mongoUri))
+                .addCommandListener(metrics.mongoListener())
+                .build());
         database = mongoClient.getDatabase("chatApp");
         usersCollection = database.getCollection("users");
         conversationsCollection = database.getCollection("conversations");
+        messagesCollection = database.getCollection("messages");
+        searchLimit = config.getInt("CHAT_SEARCH_LIMIT", 20);
+        history = new HistoryMaterializer(
+                config.getInt("CHAT_HISTORY_THREADS", Runtime.getRuntime().availableProcessors()),
+                config.getInt("CHAT_HISTORY_PARALLEL_THRESHOLD", 512));
+        ensureMessageIndexes();
+        ensureUserIndexes();
+        loadUserSearchIndex();
+        messageWrites = new PersistencePipeline(messagesCollection,
+                config.getInt("CHAT_PERSIST_QUEUE_SIZE", 10_000),
+                config.getInt("CHAT_PERSIST_BATCH_SIZE", 256),
+                config.getInt("CHAT_PERSIST_LINGER_MS", 5),
+                metrics.persistFlush);
+        metrics.registerGauge("chat_persist_queue_depth", messageWrites::getQueueDepth);
+        metrics.registerGauge("chat_persist_written_total", messageWrites::getWrittenCount);
+        metrics.registerGauge("chat_persist_failed_total", messageWrites::getFailedCount);
+        registerCacheGauges("user_profile", userProfiles);
+        registerCacheGauges("participant", conversationParticipants);
+    }
+
+    private void registerCacheGauges(String name, LruCache<?, ?> cache) {
+        metrics.registerGauge("chat_" + name + "_cache_size", cache::size);
+        metrics.registerGauge("chat_" + name + "_cache_hits_total", cache::getHits);
+        metrics.registerGauge("chat_" + name + "_cache_misses_total", cache::getMisses);
+        metrics.registerGauge("chat_" + name + "_cache_evictions_total", cache::getEvictions);
+    }
+
+    /**
+     * Each message is its own document in "messages". History reads walk the
+     * (conversationId, timestamp) index; file lookups use (conversationId, fileName).
+     * (conversationId, seq) is unique and serves SYNC; it skips documents stored before
+     * sequence numbers, until MessageMigration numbers them. (conversationId, _id) serves
+     * resume replay, which merges one range scan per conversation in _id order.
+     */
+    private void ensureMessageIndexes() {
+        messagesCollection.createIndex(Indexes.ascending("conversationId", "timestamp"));
+        messagesCollection.createIndex(Indexes.ascending("conversationId", "seq"), new IndexOptions()
+                .unique(true)
+                .partialFilterExpression(Filters.exists("seq")));
+        messagesCollection.createIndex(Indexes.ascending("conversationId", "fileName"),
+                new IndexOptions().sparse(true));
+        messagesCollection.createIndex(Indexes.ascending("conversationId", "_id"));
+    }
+
+    /**
+     * Emails are stored normalized (trimmed, lower case), so a plain unique index on
+     * "email" both prevents duplicate accounts and serves every exact-match lookup.
+     * registerUser relies on it to reject a taken email, so the server does not start
+     * without it.
+     */
+    private void ensureUserIndexes() {
+        try {
+            usersCollection.createIndex(Indexes.ascending("email"), new IndexOptions().unique(true));
+        } catch (MongoException e) {
+            mongoClient.close();
+            throw new IllegalStateException("Could not create unique email index (duplicate accounts?): "
+                    + e.getMessage(), e);
+        }
+    }
+
+    private void loadUserSearchIndex() {
+        for (Document doc : usersCollection.find().projection(Projections.include("email", "fullName"))) {
+            userSearch.add(doc.getString("email"), doc.getString("fullName"));
+        }
+        System.out.println("Indexed " + userSearch.size() + " users for search");
+    }
+
+    MongoDatabase getDatabase() {
+        return database;
     }
 
     // -------------------- User Authentication --------------------
+    /** Returns false if the email is taken; the unique email index decides, in one round trip. */
     public boolean registerUser(String email, String plainPassword, String fullName) {
         email = email.toLowerCase();
-        Document existing = usersCollection.find(new Document("email", email)).first();
-        if (existing != null) return false;
         String hashed = BCrypt.hashpw(plainPassword, BCrypt.gensalt());
         Document userDoc = new Document("fullName", fullName)
                 .append("email", email)
                 .append("password", hashed)
                 .append("conversations", new ArrayList<Document>());
-        usersCollection.insertOne(userDoc);
+        try {
+            usersCollection.insertOne(userDoc);
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) return false;
+            throw e;
+        }
+        // Written through: registration is the only place a full name is set, so the cache never
+        // has to be invalidated. Misses are not cached, so a new user is found at once.
+        userProfiles.put(email, fullName);
+        userSearch.add(email, fullName);
         return true;
     }
 
@@ -51,21 +158,46 @@ public class MongoService {
     }
 
     public String getFullName(String email) {
-        Document userDoc = usersCollection.find(new Document("email", email)).first();
-        return userDoc != null ? userDoc.getString("fullName") : null;
+        String cached = userProfiles.get(email);
+        if (cached != null) return cached;
+        Document userDoc = usersCollection.find(new Document("email", email))
+                .projection(Projections.include("fullName"))
+                .first();
+        String fullName = userDoc != null ? userDoc.getString("fullName") : null;
+        if (fullName != null) userProfiles.put(email, fullName);
+        return fullName;
     }
 
-    public List<UserRecord> searchUsersByPrefix(String prefix) {
-        List<UserRecord> results = new ArrayList<>();
-        FindIterable<Document> docs = usersCollection.find(
-                Filters.regex("email", "^" + prefix, "i")
-        );
-        for (Document doc : docs) {
-            String em = doc.getString("email");
-            String fn = doc.getString("fullName");
-            results.add(new UserRecord(em, fn));
+    /**
+     * Resolves the full names of several users at once: cached names are used directly
+     * and all the rest are fetched with a single query. Unknown users are left out of the result.
+     */
+    public Map<String, String> getFullNames(Collection<String> emails) {
+        Map<String, String> names = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String email : emails) {
+            String cached = userProfiles.get(email);
+            if (cached != null) names.put(email, cached); else missing.add(email);
+        }
+        if (!missing.isEmpty()) {
+            for (Document userDoc : usersCollection.find(Filters.in("email", missing))
+                    .projection(Projections.include("email", "fullName"))) {
+                String email = userDoc.getString("email");
+                String fullName = userDoc.getString("fullName");
+                if (fullName == null) continue;
+                userProfiles.put(email, fullName);
+                names.put(email, fullName);
+            }
         }
-        return results;
+        return names;
+    }
+
+    /**
+     * Returns the best CHAT_SEARCH_LIMIT users whose email, full name or a word of the name
+     * starts with the prefix, answered from the in-memory index without touching the database.
+     */
+    public List<UserRecord> searchUsersByPrefix(String prefix) {
+        return userSearch.search(prefix, searchLimit);
     }
 
     // -------------------- Conversation Management --------------------
@@ -75,13 +207,16 @@ public class MongoService {
         sorted.add(userB.toLowerCase());
         Collections.sort(sorted);
         String conversationId = sorted.get(0) + "_" + sorted.get(1);
-        Document existing = conversationsCollection.find(new Document("conversationId", conversationId)).first();
+        if (conversationParticipants.get(conversationId) != null) return conversationId;
+        Document existing = conversationsCollection.find(new Document("conversationId", conversationId))
+                .projection(Projections.include("_id"))
+                .first();
         if (existing == null) {
             Document newConv = new Document("conversationId", conversationId)
-                    .append("participants", sorted)
-                    .append("messages", new ArrayList<Document>());
+                    .append("participants", sorted);
             conversationsCollection.insertOne(newConv);
         }
+        conversationParticipants.put(conversationId, List.copyOf(sorted));
         return conversationId;
     }
 
@@ -110,122 +245,333 @@ public class MongoService {
 
     // -------------------- Message Storage --------------------
     /**
-     * Saves a message with a transaction rollback mechanism.
+     * Queues a message document for the batched writer and returns at once.
+     * The returned message's future completes when the document is stored.
      */
-    public void saveMessage(String conversationId, String sender, String encryptedMessage) {
-        try (ClientSession session = mongoClient.startSession()) {
-            session.startTransaction();
-            try {
-                Document msgDoc = new Document("sender", sender)
-                        .append("text", encryptedMessage)
-                        .append("isFile", false)
-                        .append("timestamp", new Date().getTime());
-
-                Bson filter = Filters.eq("conversationId", conversationId);
-                Bson update = Updates.push("messages", msgDoc);
-
-                conversationsCollection.updateOne(session, filter, update);
-                session.commitTransaction();
-            } catch (Exception e) {
-                session.abortTransaction(); // Rollback on failure
-                e.printStackTrace();
-            }
-        }
+    public PendingMessage saveMessage(String conversationId, String sender, String encryptedMessage) {
+        Document msgDoc = new Document("_id", new ObjectId())
+                .append("conversationId", conversationId)
+                .append("sender", sender)
+                .append("text", encryptedMessage)
+                .append("isFile", false)
+                .append("timestamp", new Date().getTime());
+        return enqueueMessage(msgDoc);
+    }
+
+    /** Numbers the message within its conversation and queues it for writing. */
+    private PendingMessage enqueueMessage(Document msgDoc) {
+        String conversationId = msgDoc.getString("conversationId");
+        long seq = sequences.next(conversationId);
+        msgDoc.append("seq", seq);
+        CompletableFuture<Void> persisted = messageWrites.enqueue(msgDoc);
+        // A failed write is a permanent gap; it must not hold reads back either.
+        persisted.whenComplete((ignored, error) -> sequences.settle(conversationId, seq));
+        return new PendingMessage(msgDoc.getObjectId("_id").toHexString(), seq, persisted);
+    }
+
+    /**
+     * Completes once every message numbered so far in the conversation is written (or has
+     * failed), so a read by seq made after it sees all of them; already complete if nothing
+     * is in flight.
+     */
+    public CompletableFuture<Void> whenSettled(String conversationId) {
+        return sequences.whenSettled(conversationId);
+    }
+
+    private long getHighestSeq(String conversationId) {
+        Document last = messagesCollection.find(Filters.and(
+                        Filters.eq("conversationId", conversationId), Filters.exists("seq")))
+                .sort(Sorts.descending("seq"))
+                .projection(Projections.include("seq"))
+                .first();
+        return last != null ? last.get("seq", Number.class).longValue() : 0;
     }
 
 
     public List<String> getMessages(String conversationId, String currentUser) {
         List<String> result = new ArrayList<>();
-        Document conv = conversationsCollection.find(new Document("conversationId", conversationId)).first();
-        if (conv == null) return result;
-        @SuppressWarnings("unchecked")
-        List<Document> messages = (List<Document>) conv.get("messages", List.class);
-        if (messages == null) return result;
-        for (Document msgDoc : messages) {
-            boolean isFile = msgDoc.getBoolean("isFile", false);
+        FindIterable<Document> messages = messagesCollection
+                .find(Filters.eq("conversationId", conversationId))
+                .projection(Projections.exclude("fileData"))
+                .sort(Sorts.ascending("timestamp", "_id"));
+        List<Document> docs = messages.into(new ArrayList<>());
+        result.addAll(formatMessages(docs, currentUser));
+        return result;
+    }
+
+    /**
+     * Returns up to {@code limit} of the latest messages older than {@code beforeCursor}
+     * (or the latest messages when the cursor is null), oldest first. The page's
+     * next cursor points just past its oldest message, or is null when nothing older exists.
+     * A message ID also works as a cursor, for clients that dropped the pages they had loaded.
+     * A page is one bounded index range scan, however long the conversation is.
+     */
+    public MessagePage getMessagePage(String conversationId, String currentUser, int limit, String beforeCursor) {
+        Bson filter = Filters.eq("conversationId", conversationId);
+        MessageCursor before = MessageCursor.parse(beforeCursor);
+        if (before == null && beforeCursor != null && ObjectId.isValid(beforeCursor)) {
+            before = findCursor(beforeCursor);
+        }
+        if (before != null) {
+            filter = Filters.and(filter, Filters.or(
+                    Filters.lt("timestamp", before.getTimestamp()),
+                    Filters.and(Filters.eq("timestamp", before.getTimestamp()), Filters.lt("_id", before.getId()))));
+        }
+        List<Document> docs = messagesCollection.find(filter)
+                .projection(Projections.exclude("fileData"))
+                .sort(Sorts.descending("timestamp", "_id"))
+                .limit(limit + 1)
+                .into(new ArrayList<>());
+        boolean hasMore = docs.size() > limit;
+        if (hasMore) docs.remove(docs.size() - 1);
+        Collections.reverse(docs);
+        List<MessageRecord> records = toRecords(docs, currentUser);
+        String nextCursor = hasMore ? MessageCursor.of(docs.get(0)).toString() : null;
+        return new MessagePage(records, nextCursor);
+    }
+
+    private MessageCursor findCursor(String messageId) {
+        Document doc = messagesCollection.find(Filters.eq("_id", new ObjectId(messageId)))
+                .projection(Projections.include("timestamp"))
+                .first();
+        return doc != null ? MessageCursor.of(doc) : null;
+    }
+
+    /** A message position that every message saved from now on sorts after. */
+    public String getCurrentMessagePosition() {
+        return new ObjectId().toHexString();
+    }
+
+    /**
+     * Messages stored after {@code afterMessageId} in any of the given conversations, oldest
+     * first and at most {@code limit} of them. Message IDs are ObjectIds assigned when the
+     * message is saved, so they order messages by arrival. Used to replay what a resuming
+     * client missed; returns null if more than {@code limit} messages were missed. Each
+     * conversation is a range scan of the (conversationId, _id) index.
+     */
+    public List<MessageRecord> getMessagesSince(Collection<String> conversationIds, String afterMessageId,
+                                                String currentUser, int limit) {
+        if (conversationIds.isEmpty() || !ObjectId.isValid(afterMessageId)) return new ArrayList<>();
+        List<Document> docs = messagesCollection.find(Filters.and(
+                        Filters.in("conversationId", conversationIds),
+                        Filters.gt("_id", new ObjectId(afterMessageId))))
+                .projection(Projections.exclude("fileData"))
+                .sort(Sorts.ascending("_id"))
+                .limit(limit + 1)
+                .into(new ArrayList<>());
+        if (docs.size() > limit) return null;
+        return toRecords(docs, currentUser);
+    }
+
+    /**
+     * Messages numbered after {@code sinceSeq} in one conversation, oldest first, at most
+     * {@code limit} of them. A bounded range scan of the (conversationId, seq) index, so
+     * catching up costs the number of new messages, not the length of the conversation.
+     * Stops before the oldest message still being written, since a newer one may already be
+     * readable and a client that moved past the gap would never fetch it.
+     */
+    public List<MessageRecord> getMessagesAfterSeq(String conversationId, String currentUser, long sinceSeq, int limit) {
+        long settled = sequences.settledThrough(conversationId);
+        if (settled <= sinceSeq) return new ArrayList<>();
+        List<Document> docs = messagesCollection.find(Filters.and(
+                        Filters.eq("conversationId", conversationId),
+                        Filters.gt("seq", sinceSeq),
+                        Filters.lte("seq", settled)))
+                .projection(Projections.exclude("fileData"))
+                .sort(Sorts.ascending("seq"))
+                .limit(limit)
+                .into(new ArrayList<>());
+        return toRecords(docs, currentUser);
+    }
+
+    private List<MessageRecord> toRecords(List<Document> docs, String currentUser) {
+        List<String> texts = formatMessages(docs, currentUser);
+        List<MessageRecord> records = new ArrayList<>(docs.size());
+        for (int i = 0; i < docs.size(); i++) {
+            Document doc = docs.get(i);
+            Number seq = doc.get("seq", Number.class);
+            records.add(new MessageRecord(doc.getString("conversationId"), doc.getObjectId("_id").toHexString(),
+                    seq != null ? seq.longValue() : 0, texts.get(i)));
+        }
+        return records;
+    }
+
+    /** Looks up every distinct sender other than the current user in one batch. */
+    private Map<String, String> resolveSenderNames(List<Document> docs, String currentUser) {
+        Set<String> senders = new HashSet<>();
+        for (Document msgDoc : docs) {
             String sender = msgDoc.getString("sender");
-            String text = msgDoc.getString("text"); // Already stored as plain text summary for file messages.
-            if (!isFile) {
-                try {
-                    String plainText = CryptoUtil.decrypt(text);
-                    if (sender.equalsIgnoreCase(currentUser)) {
-                        result.add("You: " + plainText);
-                    } else {
-                        String senderName = getFullName(sender);
-                        result.add((senderName != null ? senderName : sender) + ": " + plainText);
-                    }
-                } catch (Exception e) {
-                    result.add("ERROR: Message could not be decrypted.");
-                }
+            if (sender != null && !sender.equalsIgnoreCase(currentUser)) senders.add(sender);
+        }
+        return senders.isEmpty() ? Collections.emptyMap() : getFullNames(senders);
+    }
+
+    /**
+     * Formats messages for display, in order. Sender names are resolved in one query up front;
+     * decryption and formatting run in parallel slices for long histories.
+     */
+    private List<String> formatMessages(List<Document> docs, String currentUser) {
+        Map<String, String> senderNames = resolveSenderNames(docs, currentUser);
+        return history.map(docs, slice -> formatSlice(slice, currentUser, senderNames));
+    }
+
+    /** Formats a run of messages, decrypting all their texts in one batch. */
+    private List<String> formatSlice(List<Document> docs, String currentUser, Map<String, String> senderNames) {
+        List<String> cipherTexts = new ArrayList<>();
+        for (Document msgDoc : docs) {
+            if (!msgDoc.getBoolean("isFile", false)) cipherTexts.add(msgDoc.getString("text"));
+        }
+        long start = System.nanoTime();
+        Iterator<String> plainTexts = CryptoUtil.decryptAll(cipherTexts).iterator();
+        metrics.decryptionBatch.recordSince(start);
+        List<String> result = new ArrayList<>(docs.size());
+        for (Document msgDoc : docs) {
+            String plainText = msgDoc.getBoolean("isFile", false) ? null : plainTexts.next();
+            result.add(formatMessage(msgDoc, plainText, currentUser, senderNames));
+        }
+        return result;
+    }
+
+    private String formatMessage(Document msgDoc, String plainText, String currentUser, Map<String, String> senderNames) {
+        boolean isFile = msgDoc.getBoolean("isFile", false);
+        String sender = msgDoc.getString("sender");
+        if (!isFile) {
+            if (plainText == null) {
+                return "ERROR: Message could not be decrypted.";
+            }
+            if (sender.equalsIgnoreCase(currentUser)) {
+                return "You: " + plainText;
             } else {
-                // Use the stored summary text for file messages.
-                if (sender.equalsIgnoreCase(currentUser)) {
-                    result.add("You shared a file: " + msgDoc.getString("fileName"));
-                } else {
-                    String senderName = getFullName(sender);
-                    result.add((senderName != null ? senderName : sender) + " shared a file: " + msgDoc.getString("fileName"));
-                }
+                String senderName = senderNames.get(sender);
+                return (senderName != null ? senderName : sender) + ": " + plainText;
+            }
+        } else {
+            // Use the stored summary text for file messages.
+            if (sender.equalsIgnoreCase(currentUser)) {
+                return "You shared a file: " + msgDoc.getString("fileName");
+            } else {
+                String senderName = senderNames.get(sender);
+                return (senderName != null ? senderName : sender) + " shared a file: " + msgDoc.getString("fileName");
             }
         }
-        return result;
     }
 
     public List<String> getFileNames(String conversationId) {
         List<String> fileNames = new ArrayList<>();
-        Document conv = conversationsCollection.find(Filters.eq("conversationId", conversationId)).first();
-        if (conv == null) return fileNames;
-        @SuppressWarnings("unchecked")
-        List<Document> messages = (List<Document>) conv.get("messages", List.class);
-        if (messages == null) return fileNames;
-        for (Document msgDoc : messages) {
-            if (msgDoc.getBoolean("isFile", false)) {
-                fileNames.add(msgDoc.getString("fileName"));
-            }
+        FindIterable<Document> files = messagesCollection
+                .find(Filters.and(Filters.eq("conversationId", conversationId), Filters.eq("isFile", true)))
+                .projection(Projections.include("fileName"))
+                .sort(Sorts.ascending("timestamp", "_id"));
+        for (Document msgDoc : files) {
+            fileNames.add(msgDoc.getString("fileName"));
         }
         return fileNames;
     }
 
     // -------------------- File Sharing --------------------
-    public void saveFileMessage(String conversationId,
-                                String senderEmail,
-                                String fileName,
-                                String encryptedBase64,
-                                String senderFullName) {
+    /**
+     * Records a shared file. Only the blob ID is stored in the message;
+     * the bytes live in the attachment store, so history reads never touch them.
+     */
+    public PendingMessage saveFileReference(String conversationId,
+                                  String senderEmail,
+                                  String fileName,
+                                  String blobId,
+                                  long fileSize,
+                                  String senderFullName) {
         String summary = senderFullName + " shared a file: " + fileName;
-        Document fileMsg = new Document("sender", senderEmail)
+        Document fileMsg = new Document("_id", new ObjectId())
+                .append("conversationId", conversationId)
+                .append("sender", senderEmail)
                 .append("isFile", true)
                 .append("fileName", fileName)
-                .append("fileData", encryptedBase64)
+                .append("fileRef", blobId)
+                .append("fileSize", fileSize)
                 .append("text", summary)
                 .append("timestamp", new Date().getTime());
-        Bson filter = Filters.eq("conversationId", conversationId);
-        Bson update = Updates.push("messages", fileMsg);
-        conversationsCollection.updateOne(filter, update);
+        return enqueueMessage(fileMsg);
     }
 
-    public String fetchFileBase64(String conversationId, String fileName) {
-        Document conv = conversationsCollection.find(new Document("conversationId", conversationId)).first();
-        if (conv == null) return null;
-        @SuppressWarnings("unchecked")
-        List<Document> messages = (List<Document>) conv.get("messages", List.class);
-        if (messages == null) return null;
-        for (Document msgDoc : messages) {
-            boolean isFile = msgDoc.getBoolean("isFile", false);
-            String storedFileName = msgDoc.getString("fileName");
-            if (isFile && storedFileName != null && storedFileName.equals(fileName)) {
-                return msgDoc.getString("fileData");
-            }
+    /**
+     * Finds a file by attachment ID, or by name for clients that only know names (the first
+     * file with that name wins).
+     */
+    public StoredFile findFile(String conversationId, String attachmentIdOrName) {
+        Bson inConversation = Filters.and(Filters.eq("conversationId", conversationId), Filters.eq("isFile", true));
+        Bson projection = Projections.include("fileName", "fileData", "fileRef", "fileSize");
+        Document msgDoc = null;
+        if (ObjectId.isValid(attachmentIdOrName)) {
+            msgDoc = messagesCollection
+                    .find(Filters.and(inConversation, Filters.eq("_id", new ObjectId(attachmentIdOrName))))
+                    .projection(projection)
+                    .first();
         }
-        return null;
+        if (msgDoc == null) {
+            msgDoc = messagesCollection
+                    .find(Filters.and(inConversation, Filters.eq("fileName", attachmentIdOrName)))
+                    .projection(projection)
+                    .sort(Sorts.ascending("timestamp", "_id"))
+                    .first();
+        }
+        if (msgDoc == null) return null;
+        Number size = msgDoc.get("fileSize", Number.class);
+        return new StoredFile(msgDoc.getString("fileName"), msgDoc.getString("fileData"), msgDoc.getString("fileRef"),
+                size != null ? size.longValue() : -1);
+    }
+
+    /**
+     * The files shared in a conversation after {@code sinceSeq}, oldest first; all of them
+     * when it is 0. Uses the (conversationId, seq) index, so an up-to-date client costs one
+     * empty range scan. Like {@link #getMessagesAfterSeq}, stops before the oldest message
+     * still being written.
+     */
+    public List<AttachmentRecord> getAttachments(String conversationId, long sinceSeq) {
+        Bson filter = Filters.and(Filters.eq("conversationId", conversationId), Filters.eq("isFile", true));
+        if (sinceSeq > 0) filter = Filters.and(filter, Filters.gt("seq", sinceSeq));
+        long settled = sequences.settledThrough(conversationId);
+        if (settled != Long.MAX_VALUE) filter = Filters.and(filter, Filters.not(Filters.gt("seq", settled)));
+        List<Document> docs = messagesCollection.find(filter)
+                .projection(Projections.include("fileName", "fileSize", "sender", "seq"))
+                .sort(Sorts.ascending("seq", "timestamp"))
+                .into(new ArrayList<>());
+        Set<String> senders = new HashSet<>();
+        for (Document doc : docs) senders.add(doc.getString("sender"));
+        Map<String, String> names = getFullNames(senders);
+        List<AttachmentRecord> attachments = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            Number seq = doc.get("seq", Number.class);
+            Number size = doc.get("fileSize", Number.class);
+            String sender = doc.getString("sender");
+            attachments.add(new AttachmentRecord(doc.getObjectId("_id").toHexString(),
+                    seq != null ? seq.longValue() : 0, size != null ? size.longValue() : -1,
+                    names.getOrDefault(sender, sender), doc.getString("fileName")));
+        }
+        return attachments;
     }
 
     // -------------------- Recipient Utilities --------------------
-    public String getRecipientFromConversation(String conversationId, String currentUser) {
-        Document conv = conversationsCollection.find(new Document("conversationId", conversationId)).first();
+    /**
+     * Returns a conversation's participants, reading them from the database only the first
+     * time the conversation is touched (or after it was evicted). Null if it does not exist.
+     */
+    public List<String> getParticipants(String conversationId) {
+        List<String> cached = conversationParticipants.get(conversationId);
+        if (cached != null) return cached;
+        Document conv = conversationsCollection.find(new Document("conversationId", conversationId))
+                .projection(Projections.include("participants"))
+                .first();
         if (conv == null) return null;
         @SuppressWarnings("unchecked")
         List<String> participants = (List<String>) conv.get("participants");
         if (participants == null) return null;
+        participants = List.copyOf(participants);
+        conversationParticipants.put(conversationId, participants);
+        return participants;
+    }
+
+    public String getRecipientFromConversation(String conversationId, String currentUser) {
+        List<String> participants = getParticipants(conversationId);
+        if (participants == null) return null;
         for (String user : participants) {
             if (!user.equalsIgnoreCase(currentUser)) {
                 return user;
@@ -235,11 +581,14 @@ public class MongoService {
     }
 
     public boolean userExists(String email) {
+        if (userProfiles.get(email.toLowerCase()) != null) return true;
         Document userDoc = usersCollection.find(new Document("email", email.toLowerCase())).first();
         return userDoc != null;
     }
 
     public void close() {
+        messageWrites.close();
+        history.close();
         if (mongoClient != null) {
             mongoClient.close();
         }
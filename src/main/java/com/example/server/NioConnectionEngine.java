@@ -0,0 +1,326 @@
+package com.example.server;
+
+import com.example.protocol.BinaryCodec;
+import com.example.protocol.Frame;
+import com.example.protocol.ProtocolException;
+import com.example.protocol.TextCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the chat protocol from a single selector thread. Socket reads and writes never
+ * block; complete lines (or binary frames, once negotiated) are handed to a bounded worker
+ * pool, one connection at a time, so each client's commands still run in order while idle
+ * clients hold no thread. Each connection does hold a read buffer and an encode buffer of
+ * 8 KB apiece, allocated when it first reads or sends something.
+ */
+class NioConnectionEngine implements ConnectionEngine {
+    private static final int READ_BUFFER_SIZE = 8192;
+    /** Lines or frames queued for a connection before the engine stops reading from its socket. */
+    private static final int MAX_PENDING_LINES = 256;
+    /** Queued in place of a line whose command is not recognised. */
+    private static final Object UNKNOWN_COMMAND = new Object();
+
+    private final ChatServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final int maxFrameBytes;
+    private final Queue<NioConnection> interestUpdates = new ConcurrentLinkedQueue<>();
+
+    NioConnectionEngine(int port, ChatServer server, int workerThreads, int maxFrameBytes) throws IOException {
+        this.server = server;
+        this.maxFrameBytes = maxFrameBytes;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "chat-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void serve() throws IOException {
+        while (serverChannel.isOpen()) {
+            selector.select();
+            NioConnection pending;
+            while ((pending = interestUpdates.poll()) != null) {
+                pending.updateInterest();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                } catch (IOException | CancelledKeyException e) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof NioConnection) {
+                        ((NioConnection) attachment).closeNow();
+                    }
+                } catch (RuntimeException e) {
+                    // A bug triggered by one client must not stop the selector serving everyone else.
+                    System.err.println("Error: Unexpected failure serving a connection: " + e);
+                    Object attachment = key.attachment();
+                    if (attachment instanceof NioConnection) {
+                        ((NioConnection) attachment).closeNow();
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            NioConnection connection = new NioConnection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "nio";
+    }
+
+    private class NioConnection implements ClientTransport {
+        private final SocketChannel channel;
+        private final ClientHandler handler;
+        private SelectionKey key;
+        /** Allocated on the first read, so a connection that never sends costs nothing here. */
+        private ByteBuffer readBuffer;
+        private final OutboundQueue outbound = new OutboundQueue(server.getOutboundPolicy(), server.getMetrics());
+        /** Decoded frames, or UNKNOWN_COMMAND. */
+        private final Queue<Object> inbound = new ConcurrentLinkedQueue<>();
+        private final BinaryCodec decoder = new BinaryCodec(maxFrameBytes);
+        private volatile Thread dispatchThread;
+        private volatile boolean binaryIn;
+        private final AtomicInteger pendingLines = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicBoolean interestQueued = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean closeRequested;
+
+        NioConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.handler = server.newClientHandler(this);
+        }
+
+        // ----- Selector thread -----
+        void onReadable() throws IOException {
+            if (readBuffer == null) readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                closeNow();
+                return;
+            }
+            server.getMetrics().bytesIn.add(read);
+            readBuffer.flip();
+            int needed;
+            try {
+                needed = binaryIn ? extractFrames() : extractLines();
+            } catch (ProtocolException e) {
+                System.err.println("Error: " + e.getMessage() + " from client " + handler.getUsername());
+                closeNow();
+                return;
+            }
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining() || readBuffer.capacity() < needed) {
+                int maxBuffer = maxFrameBytes + BinaryCodec.HEADER_SIZE;
+                if (readBuffer.capacity() >= maxBuffer) {
+                    System.err.println("Error: Line too long from client " + handler.getUsername());
+                    closeNow();
+                    return;
+                }
+                int capacity = Math.max(readBuffer.capacity() * 2, needed);
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(capacity, maxBuffer));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            } else if (readBuffer.position() == 0 && readBuffer.capacity() > READ_BUFFER_SIZE) {
+                // Drop the buffer grown for a large line once it has been consumed.
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+            if (pendingLines.get() >= MAX_PENDING_LINES) {
+                updateInterest();
+            }
+        }
+
+        /** Queues every complete line in the buffer and returns 0, as a line's size is unknown up front. */
+        private int extractLines() {
+            int lineStart = readBuffer.position();
+            for (int i = lineStart; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    int end = i > lineStart && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    Frame frame = TextCodec.decode(readBuffer.array(), lineStart, end - lineStart);
+                    enqueue(frame != null ? frame : UNKNOWN_COMMAND);
+                    lineStart = i + 1;
+                }
+            }
+            readBuffer.position(lineStart);
+            return 0;
+        }
+
+        /** Queues every complete frame in the buffer and returns the size of the next, partial one. */
+        private int extractFrames() {
+            int size;
+            while ((size = decoder.frameSize(readBuffer)) >= 0 && readBuffer.remaining() >= size) {
+                Frame frame = decoder.decode(readBuffer);
+                if (frame != null) enqueue(frame);
+            }
+            return size;
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) break;
+                outbound.remove();
+            }
+            if (outbound.catchUp()) outbound.flush();
+            updateInterest();
+        }
+
+        void updateInterest() {
+            interestQueued.set(false);
+            if (!key.isValid()) return;
+            if (closeRequested && outbound.isEmpty()) {
+                closeNow();
+                return;
+            }
+            int ops = 0;
+            // A client that is not reading its replies gets no more commands read until it does.
+            if (pendingLines.get() < MAX_PENDING_LINES && !outbound.isOverLimit()) ops |= SelectionKey.OP_READ;
+            if (!outbound.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        private void enqueue(Object frame) {
+            inbound.add(frame);
+            pendingLines.incrementAndGet();
+            scheduleDrain();
+        }
+
+        // ----- Worker threads -----
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            dispatchThread = Thread.currentThread();
+            try {
+                Object next;
+                while (!closeRequested && (next = inbound.poll()) != null) {
+                    if (pendingLines.getAndDecrement() == MAX_PENDING_LINES) {
+                        requestInterestUpdate();
+                    }
+                    if (next == UNKNOWN_COMMAND) {
+                        handler.onUnknownCommand();
+                    } else {
+                        handler.onFrame((Frame) next);
+                    }
+                    // Everything the command produced goes to the selector as one buffer.
+                    flush();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                close();
+            } finally {
+                dispatchThread = null;
+                draining.set(false);
+            }
+            if (!closeRequested && !inbound.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+
+        private void requestInterestUpdate() {
+            if (interestQueued.compareAndSet(false, true)) {
+                interestUpdates.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /** Replies to this connection's own commands are flushed when the command finishes; anything else right away. */
+        @Override
+        public void send(Frame frame) {
+            sendAll(List.of(frame));
+        }
+
+        @Override
+        public void sendAll(List<Frame> frames) {
+            if (closeRequested) return;
+            outbound.write(frames);
+            if (Thread.currentThread() != dispatchThread) flush();
+        }
+
+        @Override
+        public void push(Frame frame) {
+            if (closeRequested) return;
+            if (outbound.push(frame)) {
+                flush();
+            } else {
+                System.err.println("Disconnecting slow client " + handler.getUsername());
+                closeNow();
+            }
+        }
+
+        @Override
+        public void upgradeToBinary(Frame reply) {
+            binaryIn = true;
+            outbound.writeUpgrade(reply);
+            if (Thread.currentThread() != dispatchThread) flush();
+        }
+
+        private void flush() {
+            if (outbound.flush()) requestInterestUpdate();
+        }
+
+        /** Closes once the frames already queued for the client have been written. */
+        @Override
+        public void close() {
+            flush();
+            closeRequested = true;
+            requestInterestUpdate();
+        }
+
+        void closeNow() {
+            closeRequested = true;
+            if (!closed.compareAndSet(false, true)) return;
+            outbound.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            workers.execute(handler::onDisconnect);
+        }
+    }
+}
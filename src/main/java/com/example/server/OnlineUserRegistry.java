@@ -0,0 +1,48 @@
+package com.example.server;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Authenticated sessions keyed by normalized email. A user can be signed in from several
+ * clients at once, so each key maps to the set of that user's live {@link ClientHandler}s.
+ * Lookups are lock-free; register and unregister only lock the hash bin of the user being
+ * changed.
+ */
+class OnlineUserRegistry {
+    private final ConcurrentHashMap<String, Set<ClientHandler>> sessions = new ConcurrentHashMap<>();
+
+    static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    void register(String email, ClientHandler handler) {
+        sessions.compute(normalize(email), (key, handlers) -> {
+            if (handlers == null) handlers = ConcurrentHashMap.newKeySet();
+            handlers.add(handler);
+            return handlers;
+        });
+    }
+
+    void unregister(String email, ClientHandler handler) {
+        sessions.computeIfPresent(normalize(email), (key, handlers) -> {
+            handlers.remove(handler);
+            return handlers.isEmpty() ? null : handlers;
+        });
+    }
+
+    Set<ClientHandler> getSessions(String email) {
+        Set<ClientHandler> handlers = sessions.get(normalize(email));
+        return handlers != null ? Collections.unmodifiableSet(handlers) : Collections.emptySet();
+    }
+
+    boolean isOnline(String email) {
+        return sessions.containsKey(normalize(email));
+    }
+
+    int getOnlineUserCount() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How much may wait in one client's outbound queue, and what happens to pushes (messages
+ * and notices caused by other users) once a client is over that. Replies to a client's own
+ * commands are never dropped; the engine stops reading its commands until the queue drains.
+ * Overflows are counted across all connections.
+ */
+class OutboundPolicy {
+    enum Action {
+        /** Close the connection; the client reconnects and resumes. */
+        DISCONNECT,
+        /** Skip the push. */
+        DROP,
+        /**
+         * Skip messages and files per conversation and send one RESYNC for each once the queue
+         * drains; pushes that cannot be caught up on that way disconnect instead.
+         */
+        COALESCE
+    }
+
+    private final long maxBytes;
+    private final int maxFrames;
+    private final Action action;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+
+    OutboundPolicy(long maxBytes, int maxFrames, Action action) {
+        this.maxBytes = maxBytes;
+        this.maxFrames = maxFrames;
+        this.action = action;
+    }
+
+    static OutboundPolicy fromConfig(ServerConfig config) {
+        String name = config.getString("CHAT_SLOW_CLIENT_POLICY", "coalesce");
+        Action action;
+        try {
+            action = Action.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value for CHAT_SLOW_CLIENT_POLICY: " + name + ", using coalesce");
+            action = Action.COALESCE;
+        }
+        return new OutboundPolicy(config.getLong("CHAT_OUTBOUND_MAX_BYTES", 4L * 1024 * 1024),
+                config.getInt("CHAT_OUTBOUND_MAX_FRAMES", 10_000), action);
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    int getMaxFrames() {
+        return maxFrames;
+    }
+
+    Action getAction() {
+        return action;
+    }
+
+    void recordDropped() {
+        dropped.increment();
+    }
+
+    void recordCoalesced() {
+        coalesced.increment();
+    }
+
+    void recordDisconnected() {
+        disconnected.increment();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    long getDisconnectedCount() {
+        return disconnected.sum();
+    }
+}
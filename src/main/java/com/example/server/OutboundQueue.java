@@ -0,0 +1,248 @@
+package com.example.server;
+
+import com.example.protocol.BinaryCodec;
+import com.example.protocol.Frame;
+import com.example.protocol.Opcode;
+import com.example.protocol.OutputBuffer;
+import com.example.protocol.TextCodec;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything waiting to be written to one client. Frames are encoded into a pending buffer
+ * and handed over as one chunk by {@link #flush()}; a single writer (the selector, or the
+ * connection's writer thread) takes chunks from the head, so whoever sends never touches
+ * the socket. When nothing else is queued, the chunk is the pending buffer itself and the
+ * last chunk written becomes the next pending buffer, so a client that keeps up costs no
+ * allocation per flush. Chunks queued behind others are copied to their exact size, so a
+ * slow client's backlog holds only the bytes it is owed. Pushes go through
+ * {@link #push(Frame)}, which applies the {@link OutboundPolicy}.
+ */
+class OutboundQueue {
+    private static final class Chunk {
+        final ByteBuffer data;
+        final int bytes;
+        final int frames;
+
+        Chunk(ByteBuffer data, int frames) {
+            this.data = data;
+            this.bytes = data.remaining();
+            this.frames = frames;
+        }
+    }
+
+    private final OutboundPolicy policy;
+    private final Metrics metrics;
+    private final Queue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    /** Frames encoded but not flushed yet; pendingFrames and binary are guarded by it too. */
+    private final OutputBuffer pending = new OutputBuffer();
+    /** The last chunk written out, reused as the pending buffer by the next flush. */
+    private final AtomicReference<ByteBuffer> spare = new AtomicReference<>();
+    private int pendingFrames;
+    private boolean binary;
+    /** Conversations whose messages or files were skipped under COALESCE, to the first seq skipped. */
+    private final Map<String, Long> behind = new LinkedHashMap<>();
+    /** Conversations whose CHAT_STARTED was skipped under COALESCE; guarded by behind. */
+    private final Set<String> startedChats = new LinkedHashSet<>();
+    /** Wakes the blocking writer and readers waiting for the queue to drain. */
+    private final Object changed = new Object();
+    private volatile boolean finishing;
+    private volatile boolean closed;
+
+    OutboundQueue(OutboundPolicy policy, Metrics metrics) {
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+
+    void write(List<Frame> frames) {
+        synchronized (pending) {
+            for (Frame frame : frames) {
+                encode(frame);
+            }
+        }
+    }
+
+    /** Encodes the HELLO_OK reply as text and everything after it as binary. */
+    void writeUpgrade(Frame reply) {
+        synchronized (pending) {
+            encode(reply);
+            binary = true;
+        }
+    }
+
+    private void encode(Frame frame) {
+        if (binary) {
+            BinaryCodec.encode(frame, pending);
+        } else {
+            TextCodec.encode(frame, pending);
+        }
+        pendingFrames++;
+    }
+
+    /**
+     * Queues a frame caused by another user, unless the client is over its limits. Returns
+     * false if the policy says to disconnect the client.
+     * <p>
+     * Under COALESCE, a skipped MESSAGE or FILE_ITEM is made up for by a RESYNC of its
+     * conversation, from which the client fetches both messages and files again, and a
+     * skipped CHAT_STARTED is sent again. Pushes that cannot be recovered that way (the
+     * NEW_MESSAGE and NEW_FILE of clients without RESUME) disconnect the client instead of
+     * being lost; it reloads when it reconnects.
+     */
+    boolean push(Frame frame) {
+        Opcode opcode = frame.getOpcode();
+        boolean bySeq = opcode == Opcode.MESSAGE || opcode == Opcode.FILE_ITEM;
+        String conversationId = bySeq || opcode == Opcode.CHAT_STARTED ? frame.getString(0) : null;
+        synchronized (behind) {
+            if (bySeq && behind.containsKey(conversationId)) {
+                // Already owed a RESYNC; skipping keeps what the client shows in order.
+                policy.recordCoalesced();
+                return true;
+            }
+            if (isOverLimit()) {
+                OutboundPolicy.Action action = policy.getAction();
+                if (action == OutboundPolicy.Action.COALESCE && conversationId != null) {
+                    if (bySeq) {
+                        behind.put(conversationId, frame.getLong(2));
+                    } else {
+                        startedChats.add(conversationId);
+                    }
+                    policy.recordCoalesced();
+                    return true;
+                }
+                if (action == OutboundPolicy.Action.DROP) {
+                    policy.recordDropped();
+                    return true;
+                }
+                policy.recordDisconnected();
+                return false;
+            }
+            write(List.of(frame));
+        }
+        return true;
+    }
+
+    /**
+     * Once the queue is down to half its limits, queues a RESYNC|conversationId|fromSeq for
+     * every conversation skipped under COALESCE, and each skipped CHAT_STARTED. Returns true
+     * if it wrote anything, which the caller then flushes.
+     */
+    boolean catchUp() {
+        if (queuedBytes.get() > policy.getMaxBytes() / 2 || queuedFrames.get() > policy.getMaxFrames() / 2) {
+            return false;
+        }
+        synchronized (behind) {
+            if (behind.isEmpty() && startedChats.isEmpty()) return false;
+            synchronized (pending) {
+                // New chats first, so the client lists them before it is told what it missed in them.
+                for (String conversationId : startedChats) {
+                    encode(Frame.of(Opcode.CHAT_STARTED, conversationId));
+                }
+                for (Map.Entry<String, Long> skipped : behind.entrySet()) {
+                    encode(Frame.of(Opcode.RESYNC, skipped.getKey(), skipped.getValue()));
+                }
+            }
+            behind.clear();
+            startedChats.clear();
+        }
+        return true;
+    }
+
+    /** Hands everything encoded so far to the writer as one chunk. Returns false if there was nothing. */
+    boolean flush() {
+        synchronized (pending) {
+            if (pending.isEmpty() || closed) return false;
+            ByteBuffer data = chunks.isEmpty() ? pending.take(spare.getAndSet(null)) : pending.take();
+            Chunk chunk = new Chunk(data, pendingFrames);
+            pendingFrames = 0;
+            queuedBytes.addAndGet(chunk.bytes);
+            queuedFrames.addAndGet(chunk.frames);
+            metrics.outboundQueuedBytes.add(chunk.bytes);
+            chunks.add(chunk);
+        }
+        signal();
+        return true;
+    }
+
+    /** The chunk being written, or null if the queue is empty. */
+    ByteBuffer peek() {
+        Chunk head = chunks.peek();
+        return head != null ? head.data : null;
+    }
+
+    /** Removes the chunk returned by {@link #peek()} once it has been written completely. */
+    void remove() {
+        Chunk head = chunks.poll();
+        if (head == null) return;
+        queuedBytes.addAndGet(-head.bytes);
+        queuedFrames.addAndGet(-head.frames);
+        metrics.outboundQueuedBytes.add(-head.bytes);
+        metrics.bytesOut.add(head.bytes);
+        spare.set(head.data);
+        signal();
+    }
+
+    /**
+     * Blocks until there is a chunk to write and returns it, or returns null once the queue
+     * is closed, or finished and drained.
+     */
+    ByteBuffer awaitHead() throws InterruptedException {
+        synchronized (changed) {
+            while (!closed && chunks.isEmpty() && !finishing) {
+                changed.wait();
+            }
+        }
+        return closed ? null : peek();
+    }
+
+    /** Blocks while the client is over its limits, so it cannot queue more replies than it reads. */
+    void awaitBelowLimit() throws InterruptedException {
+        synchronized (changed) {
+            while (!closed && isOverLimit()) {
+                changed.wait();
+            }
+        }
+    }
+
+    boolean isOverLimit() {
+        return queuedBytes.get() > policy.getMaxBytes() || queuedFrames.get() > policy.getMaxFrames();
+    }
+
+    boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    /** Lets the writer finish what is queued; {@link #awaitHead()} then returns null. */
+    void finish() {
+        finishing = true;
+        signal();
+    }
+
+    /** Discards everything still queued. */
+    void close() {
+        closed = true;
+        Chunk discarded;
+        while ((discarded = chunks.poll()) != null) {
+            metrics.outboundQueuedBytes.add(-discarded.bytes);
+        }
+        signal();
+    }
+
+    private void signal() {
+        synchronized (changed) {
+            changed.notifyAll();
+        }
+    }
+}
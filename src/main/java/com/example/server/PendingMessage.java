@@ -0,0 +1,24 @@
+package com.example.server;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A message accepted for storage. Its ID and sequence number are assigned up front, so it can
+ * be delivered and acknowledged before the write reaches the database.
+ */
+public class PendingMessage {
+    private final String messageId;
+    private final long seq;
+    private final CompletableFuture<Void> persisted;
+
+    public PendingMessage(String messageId, long seq, CompletableFuture<Void> persisted) {
+        this.messageId = messageId;
+        this.seq = seq;
+        this.persisted = persisted;
+    }
+    public String getMessageId() { return messageId; }
+    /** The message's position in its conversation. */
+    public long getSeq() { return seq; }
+    /** Completes when the message is stored, or exceptionally if it could not be. */
+    public CompletableFuture<Void> getPersisted() { return persisted; }
+}
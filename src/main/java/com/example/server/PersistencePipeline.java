@@ -0,0 +1,169 @@
+package com.example.server;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes message documents in the background. Callers enqueue into a bounded buffer and get
+ * a future that completes once the document is stored. A single flusher thread drains the
+ * buffer in micro-batches (up to {@code batchSize} documents, waiting at most {@code lingerMillis}
+ * for a batch to fill) and stores each batch with one unordered bulkWrite.
+ * <p>
+ * Every future completes: a document that cannot be queued fails at once rather than
+ * holding up the connection thread, and anything still queued when the flusher stops fails
+ * too.
+ */
+class PersistencePipeline {
+    private static final long SLOW_FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final MongoCollection<Document> collection;
+    private final BlockingQueue<PendingWrite> queue;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    /** One sample per bulkWrite, so its count is the number of batches flushed. */
+    private final LatencyHistogram flushLatency;
+
+    PersistencePipeline(MongoCollection<Document> collection, int capacity, int batchSize, long lingerMillis,
+                        LatencyHistogram flushLatency) {
+        this.collection = collection;
+        this.flushLatency = flushLatency;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.flusher = new Thread(this::flushLoop, "message-persistence");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues a document for insertion. The returned future has already failed if the buffer
+     * is full or the pipeline is closed, and fails later if the write is rejected.
+     */
+    CompletableFuture<Void> enqueue(Document doc) {
+        PendingWrite write = new PendingWrite(doc);
+        if (!running) {
+            fail(write, new IllegalStateException("Persistence pipeline is closed"));
+        } else if (!queue.offer(write)) {
+            fail(write, new IllegalStateException("Persistence queue is full"));
+        } else if (!running && queue.remove(write)) {
+            // Closed between the check and the offer, possibly after the flusher's last look.
+            fail(write, new IllegalStateException("Persistence pipeline is closed"));
+        }
+        return write.done;
+    }
+
+    private void fail(PendingWrite write, Exception cause) {
+        failed.increment();
+        write.done.completeExceptionally(cause);
+    }
+
+    private void flushLoop() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) break;
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                if (!running) break;
+            } finally {
+                batch.clear();
+            }
+        }
+        // Left behind by an interrupt during close, or offered as it stopped: failed, not forgotten.
+        PendingWrite left;
+        while ((left = queue.poll()) != null) {
+            fail(left, new IllegalStateException("Persistence pipeline is closed"));
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        List<InsertOneModel<Document>> models = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            models.add(new InsertOneModel<>(write.doc));
+        }
+        long start = System.nanoTime();
+        boolean[] rejected = new boolean[batch.size()];
+        RuntimeException failure = null;
+        try {
+            collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                rejected[error.getIndex()] = true;
+            }
+            failure = e;
+        } catch (RuntimeException e) {
+            Arrays.fill(rejected, true);
+            failure = e;
+        }
+        long elapsed = System.nanoTime() - start;
+        flushLatency.record(elapsed);
+        if (failure != null) {
+            System.err.println("Error: Failed to persist messages: " + failure.getMessage());
+        } else if (elapsed > SLOW_FLUSH_NANOS) {
+            System.err.println("Slow message flush: " + batch.size() + " messages in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, " + queue.size() + " still queued");
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (rejected[i]) {
+                failed.increment();
+                batch.get(i).done.completeExceptionally(failure);
+            } else {
+                written.increment();
+                batch.get(i).done.complete(null);
+            }
+        }
+    }
+
+    /** Stops accepting writes and waits for the buffer to be flushed. */
+    void close() {
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ----- Metrics -----
+    int getQueueDepth() { return queue.size(); }
+    long getWrittenCount() { return written.sum(); }
+    long getFailedCount() { return failed.sum(); }
+
+    private static class PendingWrite {
+        final Document doc;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(Document doc) {
+            this.doc = doc;
+        }
+    }
+}
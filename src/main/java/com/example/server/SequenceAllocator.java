@@ -0,0 +1,97 @@
+package com.example.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hands out increasing sequence numbers per conversation. The first number for a conversation
+ * follows the highest one already stored; after that numbers come from memory, since the
+ * latest messages may still be waiting in the write pipeline. Entries are never evicted for
+ * the same reason: re-reading the database could hand out a number that is already taken.
+ * This assumes one server writes to the database.
+ * <p>
+ * The pipeline writes out of order, so message N+1 can be readable before N. Each
+ * conversation therefore also tracks the highest number up to which every message is
+ * settled (written, or failed for good); reads by seq stop there, so a client never
+ * moves past a message that is about to appear.
+ */
+class SequenceAllocator {
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ToLongFunction<String> highestStored;
+
+    SequenceAllocator(ToLongFunction<String> highestStored) {
+        this.highestStored = highestStored;
+    }
+
+    long next(String conversationId) {
+        Counter counter = counters.computeIfAbsent(conversationId, id -> new Counter(highestStored.applyAsLong(id)));
+        synchronized (counter) {
+            return ++counter.assigned;
+        }
+    }
+
+    /** Records that the message numbered {@code seq} is written or will never be. */
+    void settle(String conversationId, long seq) {
+        Counter counter = counters.get(conversationId);
+        if (counter == null) return;
+        List<CompletableFuture<Void>> ready = new ArrayList<>();
+        synchronized (counter) {
+            counter.settledAhead.add(seq);
+            while (!counter.settledAhead.isEmpty() && counter.settledAhead.first() == counter.settled + 1) {
+                counter.settled = counter.settledAhead.pollFirst();
+            }
+            counter.waiters.removeIf(waiter -> {
+                if (waiter.seq > counter.settled) return false;
+                ready.add(waiter.future);
+                return true;
+            });
+        }
+        ready.forEach(future -> future.complete(null));
+    }
+
+    /** The highest seq up to which every message is settled; unbounded if nothing was assigned here. */
+    long settledThrough(String conversationId) {
+        Counter counter = counters.get(conversationId);
+        if (counter == null) return Long.MAX_VALUE;
+        synchronized (counter) {
+            return counter.settled;
+        }
+    }
+
+    /** Completes once every number assigned so far is settled; already complete if they are. */
+    CompletableFuture<Void> whenSettled(String conversationId) {
+        Counter counter = counters.get(conversationId);
+        if (counter == null) return CompletableFuture.completedFuture(null);
+        synchronized (counter) {
+            if (counter.settled >= counter.assigned) return CompletableFuture.completedFuture(null);
+            Waiter waiter = new Waiter(counter.assigned);
+            counter.waiters.add(waiter);
+            return waiter.future;
+        }
+    }
+
+    private static final class Counter {
+        long assigned;
+        long settled;
+        final TreeSet<Long> settledAhead = new TreeSet<>();
+        final List<Waiter> waiters = new ArrayList<>();
+
+        Counter(long highestStored) {
+            this.assigned = highestStored;
+            this.settled = highestStored;
+        }
+    }
+
+    private static final class Waiter {
+        final long seq;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long seq) {
+            this.seq = seq;
+        }
+    }
+}
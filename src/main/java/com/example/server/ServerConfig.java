@@ -0,0 +1,45 @@
+package com.example.server;
+
+import io.github.cdimascio.dotenv.Dotenv;
+
+/**
+ * Server settings read from the .env file (or the process environment).
+ */
+public class ServerConfig {
+    private final Dotenv dotenv;
+
+    private ServerConfig(Dotenv dotenv) {
+        this.dotenv = dotenv;
+    }
+
+    public static ServerConfig load() {
+        return new ServerConfig(Dotenv.configure().load());
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = dotenv.get(key);
+        return value != null && !value.isBlank() ? value.trim() : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Signed, expiring resume tokens: base64url(email) + "." + expiry millis + "." + HMAC-SHA256
+ * of the first two parts. Nothing is stored server-side, so any server sharing the secret
+ * (CHAT_SESSION_SECRET) can verify a token, including one that was just restarted.
+ */
+class SessionTokens {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;
+
+    SessionTokens(String secret, long ttlMillis) {
+        byte[] keyBytes;
+        if (secret == null || secret.isEmpty()) {
+            System.err.println("CHAT_SESSION_SECRET is not set; resume tokens will not survive a restart");
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        } else {
+            keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        this.key = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+        this.ttlMillis = ttlMillis;
+    }
+
+    String issue(String email) {
+        String payload = ENCODER.encodeToString(email.getBytes(StandardCharsets.UTF_8))
+                + "." + (System.currentTimeMillis() + ttlMillis);
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /** Returns the email the token was issued to, or null if it is malformed, forged or expired. */
+    String verify(String token) {
+        int signatureAt = token.lastIndexOf('.');
+        int expiryAt = token.indexOf('.');
+        if (expiryAt <= 0 || signatureAt <= expiryAt) return null;
+        String payload = token.substring(0, signatureAt);
+        try {
+            if (!MessageDigest.isEqual(sign(payload), DECODER.decode(token.substring(signatureAt + 1)))) return null;
+            if (Long.parseLong(token.substring(expiryAt + 1, signatureAt)) < System.currentTimeMillis()) return null;
+            return new String(DECODER.decode(token.substring(0, expiryAt)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.server;
+
+/**
+ * A file attached to a conversation. New files hold a blob ID into the attachment store;
+ * files saved inline by older servers carry their encrypted base64 until migrated.
+ */
+public class StoredFile {
+    private final String fileName;
+    private final String inlineData;
+    private final String fileRef;
+    private final long size;
+
+    public StoredFile(String fileName, String inlineData, String fileRef, long size) {
+        this.fileName = fileName;
+        this.inlineData = inlineData;
+        this.fileRef = fileRef;
+        this.size = size;
+    }
+    public String getFileName() { return fileName; }
+    public String getInlineData() { return inlineData; }
+    public String getFileRef() { return fileRef; }
+    public long getSize() { return size; }
+    public boolean isInline() { return fileRef == null; }
+}
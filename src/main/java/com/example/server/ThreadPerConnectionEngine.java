@@ -0,0 +1,193 @@
+package com.example.server;
+
+import com.example.protocol.Frame;
+import com.example.protocol.FrameReader;
+import com.example.protocol.ProtocolException;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.List;
+
+/**
+ * The original engine: one platform thread per socket, blocking on each read.
+ */
+class ThreadPerConnectionEngine implements ConnectionEngine {
+    private final ServerSocket serverSocket;
+    private final ChatServer server;
+    private final int maxFrameBytes;
+
+    ThreadPerConnectionEngine(int port, ChatServer server, int maxFrameBytes) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.server = server;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    @Override
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                new Thread(new BlockingConnection(clientSocket, server, maxFrameBytes)).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "threaded";
+    }
+}
+
+/**
+ * A socket served by two threads: the reader runs this connection's commands in order, and
+ * a writer drains its {@link OutboundQueue}, so a client that stops reading only ever
+ * blocks its own writer. The price is a second thread (and stack) per client; deployments
+ * with many clients should use the NIO engine, which needs neither.
+ */
+class BlockingConnection implements Runnable, ClientTransport {
+    private final Socket socket;
+    private final ClientHandler handler;
+    private final int maxFrameBytes;
+    private final OutboundQueue outbound;
+    private FrameReader in;
+    private Thread readerThread;
+    private volatile boolean closeRequested;
+    private final LongAdder bytesIn;
+
+    BlockingConnection(Socket socket, ChatServer server, int maxFrameBytes) {
+        this.socket = socket;
+        this.maxFrameBytes = maxFrameBytes;
+        this.outbound = new OutboundQueue(server.getOutboundPolicy(), server.getMetrics());
+        this.handler = server.newClientHandler(this);
+        this.bytesIn = server.getMetrics().bytesIn;
+    }
+
+    @Override
+    public void run() {
+        try {
+            readerThread = Thread.currentThread();
+            OutputStream stream = socket.getOutputStream();
+            Thread writer = new Thread(() -> writeLoop(stream), "chat-writer");
+            writer.setDaemon(true);
+            writer.start();
+            in = new FrameReader(new CountingInputStream(socket.getInputStream(), bytesIn), maxFrameBytes);
+            Frame frame;
+            while (!closeRequested && (frame = in.read(handler::onUnknownCommand)) != null) {
+                handler.onFrame(frame);
+                // Everything the command produced goes out in one write.
+                outbound.flush();
+                outbound.awaitBelowLimit();
+            }
+        } catch (IOException | ProtocolException e) {
+            if (!closeRequested) {
+                System.err.println("Error: Connection issue with client " + handler.getUsername());
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error: Unexpected failure serving client " + handler.getUsername() + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            handler.onDisconnect();
+            if (closeRequested) {
+                close();
+            } else {
+                closeNow();
+            }
+        }
+    }
+
+    private void writeLoop(OutputStream stream) {
+        try {
+            ByteBuffer head;
+            while ((head = outbound.awaitHead()) != null) {
+                stream.write(head.array(), head.position(), head.remaining());
+                outbound.remove();
+                if (outbound.catchUp()) outbound.flush();
+            }
+        } catch (IOException e) {
+            // The reader thread notices the broken socket and cleans up.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeNow();
+        }
+    }
+
+    /** Replies to this connection's own commands are flushed when the command finishes; anything else right away. */
+    @Override
+    public void send(Frame frame) {
+        sendAll(List.of(frame));
+    }
+
+    @Override
+    public void sendAll(List<Frame> frames) {
+        if (closeRequested) return;
+        outbound.write(frames);
+        if (Thread.currentThread() != readerThread) outbound.flush();
+    }
+
+    @Override
+    public void push(Frame frame) {
+        if (closeRequested) return;
+        if (outbound.push(frame)) {
+            outbound.flush();
+        } else {
+            System.err.println("Disconnecting slow client " + handler.getUsername());
+            closeNow();
+        }
+    }
+
+    @Override
+    public void upgradeToBinary(Frame reply) {
+        // Only called from this connection's own reader thread, between two reads.
+        in.switchToBinary();
+        outbound.writeUpgrade(reply);
+    }
+
+    /** Closes once the writer has sent what is already queued. */
+    @Override
+    public void close() {
+        outbound.flush();
+        closeRequested = true;
+        outbound.finish();
+    }
+
+    private void closeNow() {
+        closeRequested = true;
+        outbound.close();
+        try {
+            if (!socket.isClosed()) socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/** Counts the bytes read through it into a shared counter. */
+class CountingInputStream extends FilterInputStream {
+    private final LongAdder counter;
+
+    CountingInputStream(InputStream in, LongAdder counter) {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) counter.increment();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) counter.add(n);
+        return n;
+    }
+}
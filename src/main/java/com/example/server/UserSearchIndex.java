@@ -0,0 +1,90 @@
+package com.example.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory prefix index over user emails and full names, backed by sorted maps so a
+ * prefix query is a range scan that stops after the first {@code limit} hits.
+ *
+ * Results are ranked: email prefix matches first, then users whose full name starts with
+ * the query, then users with any other name word starting with it. Within a tier the
+ * shorter key wins, then alphabetical order.
+ */
+class UserSearchIndex {
+    private static final char SEPARATOR = '\u0000';
+
+    private final ConcurrentSkipListMap<String, UserRecord> byEmail = new ConcurrentSkipListMap<>();
+    /** Keys are "normalized full name \0 email". */
+    private final ConcurrentSkipListMap<String, UserRecord> byFullName = new ConcurrentSkipListMap<>();
+    /** Keys are "name word \0 email" for every word after the first. */
+    private final ConcurrentSkipListMap<String, UserRecord> byNameWord = new ConcurrentSkipListMap<>();
+
+    static String normalize(String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    void add(String email, String fullName) {
+        String normalizedEmail = normalize(email);
+        if (normalizedEmail.isEmpty()) return;
+        UserRecord record = new UserRecord(normalizedEmail, fullName);
+        UserRecord previous = byEmail.put(normalizedEmail, record);
+        if (previous != null) removeNameKeys(previous);
+        String name = normalize(fullName);
+        if (name.isEmpty()) return;
+        byFullName.put(name + SEPARATOR + normalizedEmail, record);
+        String[] words = name.split("\\s+");
+        for (int i = 1; i < words.length; i++) {
+            byNameWord.put(words[i] + SEPARATOR + normalizedEmail, record);
+        }
+    }
+
+    private void removeNameKeys(UserRecord record) {
+        String name = normalize(record.getFullName());
+        if (name.isEmpty()) return;
+        byFullName.remove(name + SEPARATOR + record.getEmail());
+        String[] words = name.split("\\s+");
+        for (int i = 1; i < words.length; i++) {
+            byNameWord.remove(words[i] + SEPARATOR + record.getEmail());
+        }
+    }
+
+    List<UserRecord> search(String prefix, int limit) {
+        String query = normalize(prefix);
+        if (query.isEmpty() || limit <= 0) return Collections.emptyList();
+        Map<String, UserRecord> results = new LinkedHashMap<>();
+        collect(byEmail, query, limit, results);
+        collect(byFullName, query, limit, results);
+        collect(byNameWord, query, limit, results);
+        return new ArrayList<>(results.values());
+    }
+
+    /** Adds up to {@code limit} matches from one tier, shortest keys first. */
+    private static void collect(ConcurrentSkipListMap<String, UserRecord> index, String query, int limit,
+                                Map<String, UserRecord> results) {
+        if (results.size() >= limit) return;
+        // Scanning a few times the limit is enough to rank by length within the tier
+        // without walking every match of a short, popular prefix.
+        int scanLimit = limit * 4;
+        List<Map.Entry<String, UserRecord>> candidates = new ArrayList<>();
+        for (Map.Entry<String, UserRecord> entry : index.subMap(query, true, query + Character.MAX_VALUE, false).entrySet()) {
+            candidates.add(entry);
+            if (candidates.size() >= scanLimit) break;
+        }
+        candidates.sort(Comparator.comparingInt((Map.Entry<String, UserRecord> e) -> matchLength(e.getKey()))
+                .thenComparing(Map.Entry::getKey));
+        for (Map.Entry<String, UserRecord> entry : candidates) {
+            if (results.size() >= limit) return;
+            results.putIfAbsent(entry.getValue().getEmail(), entry.getValue());
+        }
+    }
+
+    private static int matchLength(String key) {
+        int separator = key.indexOf(SEPARATOR);
+        return separator >= 0 ? separator : key.length();
+    }
+
+    int size() {
+        return byEmail.size();
+    }
+}
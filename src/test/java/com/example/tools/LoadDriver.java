@@ -0,0 +1,321 @@
+package com.example.tools;
+
+import com.example.protocol.Features;
+import com.example.protocol.Frame;
+import com.example.protocol.FrameReader;
+import com.example.protocol.FrameWriter;
+import com.example.protocol.Opcode;
+import com.example.protocol.TextCodec;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for the connection engines: holds many idle connections open while pairs of
+ * logged-in users chat at a steady rate, then reports what the server kept up with.
+ * <pre>
+ * java -cp target/classes:target/test-classes com.example.tools.LoadDriver \
+ *     [host] [port] [idleConnections] [activePairs] [messagesPerSecond] [seconds]
+ * </pre>
+ * Idle connections send HELLO and nothing else, as a client sitting on the login screen
+ * would; at the end each must still be open and have received HELLO_OK. Active users
+ * register fresh accounts, negotiate BIN1 and RESUME like the desktop client, start a chat
+ * with their partner and take turns sending SEND_MESSAGE. Each message carries its send time,
+ * so the partner's MESSAGE push gives the delivery latency.
+ * <p>
+ * One address pair has fewer ephemeral ports than a large test needs, so when the server is
+ * on loopback the idle connections are spread over several 127.0.0.x source addresses.
+ * Both this process and the server need an open-file limit above the connection count.
+ */
+public class LoadDriver {
+    private static final int MAX_FRAME_BYTES = 1024 * 1024;
+    private static final int LOOPBACK_SOURCES = 8;
+    private static final String TIMESTAMP_PREFIX = "t=";
+
+    private final String host;
+    private final int port;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong saved = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    /** Delivery latencies in microseconds, one per message delivered; guarded by this. */
+    private long[] latencies = new long[1 << 16];
+
+    private LoadDriver(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        int idleCount = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+        int pairs = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int rate = args.length > 4 ? Integer.parseInt(args[4]) : 1_000;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 60;
+        new LoadDriver(host, port).run(idleCount, pairs, rate, seconds);
+    }
+
+    private void run(int idleCount, int pairs, int rate, int seconds) throws Exception {
+        long start = System.nanoTime();
+        List<SocketChannel> idle = openIdle(idleCount);
+        System.out.printf("Opened %d idle connections in %.1f s%n", idle.size(), secondsSince(start));
+
+        start = System.nanoTime();
+        List<ActiveUser> users = startUsers(pairs);
+        System.out.printf("Logged in %d users in %d chats in %.1f s%n", users.size(), pairs, secondsSince(start));
+
+        System.out.printf("Sending %d messages per second for %d s%n", rate, seconds);
+        sendSteadily(users, rate, seconds);
+        // Give the last messages time to arrive.
+        Thread.sleep(2_000);
+
+        int alive = countAnswered(idle);
+        report(idle.size(), alive, users);
+        for (SocketChannel channel : idle) {
+            channel.close();
+        }
+        for (ActiveUser user : users) {
+            user.close();
+        }
+    }
+
+    // -------------------- Idle connections --------------------
+
+    private List<SocketChannel> openIdle(int count) {
+        ByteBuffer hello = ByteBuffer.wrap((TextCodec.encode(Frame.of(Opcode.HELLO, "")) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        InetAddress[] sources = loopbackSources();
+        List<SocketChannel> channels = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                if (sources != null) channel.bind(new InetSocketAddress(sources[i % sources.length], 0));
+                channel.connect(new InetSocketAddress(host, port));
+                channel.write(hello.duplicate());
+                channel.configureBlocking(false);
+                channels.add(channel);
+            } catch (IOException e) {
+                System.err.println("Stopped opening idle connections at " + i + ": " + e.getMessage());
+                break;
+            }
+            if ((i + 1) % 10_000 == 0) System.out.println("  " + (i + 1) + " idle connections open");
+        }
+        return channels;
+    }
+
+    /** 127.0.0.2 and up when the server is on loopback, or null to let the system pick. */
+    private InetAddress[] loopbackSources() {
+        try {
+            if (!InetAddress.getByName(host).isLoopbackAddress()) return null;
+            InetAddress[] sources = new InetAddress[LOOPBACK_SOURCES];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) (i + 2)});
+            }
+            return sources;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Idle connections the server has answered and not closed. */
+    private int countAnswered(List<SocketChannel> channels) {
+        int answered = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        for (SocketChannel channel : channels) {
+            buffer.clear();
+            try {
+                if (channel.read(buffer) > 0) answered++;
+            } catch (IOException e) {
+                // Reset by the server; not counted.
+            }
+        }
+        return answered;
+    }
+
+    // -------------------- Active users --------------------
+
+    private List<ActiveUser> startUsers(int pairs) throws Exception {
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        List<ActiveUser> users = new ArrayList<>(pairs * 2);
+        for (int i = 0; i < pairs * 2; i++) {
+            users.add(new ActiveUser("load-" + run + "-" + i + "@example.com"));
+        }
+        for (ActiveUser user : users) {
+            user.register();
+        }
+        for (int i = 0; i < users.size(); i += 2) {
+            users.get(i).startChat(users.get(i + 1));
+        }
+        for (ActiveUser user : users) {
+            user.awaitChat();
+            Thread reader = new Thread(user::readPushes, "reader-" + user.email);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return users;
+    }
+
+    private void sendSteadily(List<ActiveUser> users, int rate, int seconds) throws InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long total = (long) rate * seconds;
+        long next = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            ActiveUser user = users.get((int) (i % users.size()));
+            user.send(TIMESTAMP_PREFIX + System.nanoTime());
+            sent.incrementAndGet();
+            next += interval;
+            long wait = next - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private synchronized void recordLatency(long micros) {
+        int index = (int) delivered.getAndIncrement();
+        if (index == latencies.length) latencies = Arrays.copyOf(latencies, index * 2);
+        latencies[index] = micros;
+    }
+
+    private void report(int idleOpened, int idleAnswered, List<ActiveUser> users) {
+        int usersOpen = 0;
+        for (ActiveUser user : users) {
+            if (!user.closed) usersOpen++;
+        }
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(latencies, (int) delivered.get());
+        }
+        Arrays.sort(sorted);
+        System.out.println("---- Result ----");
+        System.out.printf("Idle connections: %d opened, %d answered and still open%n", idleOpened, idleAnswered);
+        System.out.printf("Active users: %d, %d still open%n", users.size(), usersOpen);
+        System.out.printf("Messages: %d sent, %d saved, %d delivered, %d errors%n",
+                sent.get(), saved.get(), delivered.get(), errors.get());
+        if (sorted.length > 0) {
+            System.out.printf("Delivery latency (ms): p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted[sorted.length - 1] / 1000.0);
+        }
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1000.0;
+    }
+
+    private static double secondsSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /** A logged-in user with a blocking socket, read by its own thread once the chat is set up. */
+    private final class ActiveUser {
+        final String email;
+        final Socket socket;
+        final FrameReader in;
+        final FrameWriter out;
+        final CountDownLatch chatStarted = new CountDownLatch(1);
+        String conversationId;
+        volatile boolean closed;
+
+        ActiveUser(String email) throws IOException {
+            this.email = email;
+            this.socket = new Socket(host, port);
+            this.socket.setTcpNoDelay(true);
+            this.in = new FrameReader(socket.getInputStream(), MAX_FRAME_BYTES);
+            this.out = new FrameWriter(socket.getOutputStream());
+        }
+
+        void register() throws IOException {
+            write(Frame.of(Opcode.HELLO, Features.BINARY + "," + Features.RESUME));
+            Frame reply = expect(Opcode.HELLO_OK);
+            if (Features.parse(reply.getString(0)).contains(Features.BINARY)) {
+                in.switchToBinary();
+                out.switchToBinary();
+            }
+            write(Frame.of(Opcode.REGISTER, "Load " + email, email, "secret"));
+            expect(Opcode.AUTH_OK);
+        }
+
+        void startChat(ActiveUser partner) throws IOException {
+            write(Frame.of(Opcode.NEW_CHAT, partner.email));
+            conversationId = expect(Opcode.CHAT_STARTED).getString(0);
+            chatStarted.countDown();
+        }
+
+        /** Waits for our own NEW_CHAT, or reads the CHAT_STARTED our partner's caused. */
+        void awaitChat() throws IOException {
+            if (chatStarted.getCount() == 0) return;
+            conversationId = expect(Opcode.CHAT_STARTED).getString(0);
+            chatStarted.countDown();
+        }
+
+        void send(String text) {
+            if (closed) return;
+            try {
+                write(Frame.of(Opcode.SEND_MESSAGE, conversationId, text));
+            } catch (IOException e) {
+                closed = true;
+            }
+        }
+
+        void readPushes() {
+            try {
+                Frame frame;
+                while ((frame = in.read()) != null) {
+                    switch (frame.getOpcode()) {
+                        case MESSAGE_SAVED:
+                            saved.incrementAndGet();
+                            break;
+                        case MESSAGE:
+                            String text = frame.getString(3);
+                            int at = text.lastIndexOf(TIMESTAMP_PREFIX);
+                            if (at >= 0) {
+                                long sentAt = Long.parseLong(text.substring(at + TIMESTAMP_PREFIX.length()));
+                                recordLatency((System.nanoTime() - sentAt) / 1000);
+                            }
+                            break;
+                        case ERROR:
+                            errors.incrementAndGet();
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                // Counted as closed below.
+            }
+            closed = true;
+        }
+
+        /** Reads until a frame with the given opcode, skipping SESSION and other pushes. */
+        private Frame expect(Opcode opcode) throws IOException {
+            Frame frame;
+            while ((frame = in.read()) != null) {
+                if (frame.getOpcode() == opcode) return frame;
+                if (frame.getOpcode() == Opcode.AUTH_FAIL) {
+                    throw new IOException(email + ": " + frame.getString(0));
+                }
+            }
+            throw new IOException(email + ": server hung up waiting for " + opcode);
+        }
+
+        private void write(Frame frame) throws IOException {
+            out.write(frame);
+            out.flush();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}